@@ -0,0 +1,62 @@
+package me.freewine.winnie;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Checks that the counter journal survives reopening and a torn write of its newest slot.
+ */
+public class CounterJournalTest extends TestCase {
+    // Offset of the count in the first slot
+    private static final int FIRST_SLOT_COUNT_OFFSET = 12;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws IOException {
+        mFile = File.createTempFile("counter", ".journal");
+        assertTrue(mFile.delete());
+    }
+
+    @Override
+    protected void tearDown() {
+        mFile.delete();
+    }
+
+    public void testReadsNewestValueAfterReopening() {
+        CounterJournal journal = new CounterJournal(mFile);
+        assertEquals(CounterJournal.NO_COUNT, journal.read());
+
+        journal.write(150);
+        journal.write(200);
+        journal.force();
+        assertEquals(200, new CounterJournal(mFile).read());
+    }
+
+    public void testTornWriteKeepsPreviousValue() throws IOException {
+        CounterJournal journal = new CounterJournal(mFile);
+        journal.write(150);
+        journal.write(100);
+        // Lands in the first slot again
+        journal.write(50);
+        journal.force();
+
+        // Damages the newest slot as an interrupted write would
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(FIRST_SLOT_COUNT_OFFSET);
+            raf.writeInt(999);
+        } finally {
+            raf.close();
+        }
+
+        CounterJournal reopened = new CounterJournal(mFile);
+        assertEquals(100, reopened.read());
+
+        reopened.write(0);
+        assertEquals(0, new CounterJournal(mFile).read());
+    }
+}
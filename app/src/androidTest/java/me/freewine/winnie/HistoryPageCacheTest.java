@@ -0,0 +1,64 @@
+package me.freewine.winnie;
+
+import android.net.Uri;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the page cache serves repeated queries and drops pages once the history changes.
+ */
+public class HistoryPageCacheTest extends TestCase {
+    private static final String[] PROJECTION = HistoryArchive.COLUMNS;
+
+    private final String mKey = HistoryPageCache.keyOf(HistoryProvider.HISTORY_ALL_QUERY,
+            HistoryContract.buildAllUri(50), PROJECTION, null, null, null);
+
+    private static HistoryArrayCursor page(int rows) {
+        HistoryArrayCursor cursor = new HistoryArrayCursor(PROJECTION, rows);
+        for (int i = rows; i > 0; i--) {
+            cursor.addRow(i, 150 + i, 1, 1000L * i);
+        }
+        return cursor;
+    }
+
+    public void testServesRepeatedQuery() {
+        HistoryPageCache cache = new HistoryPageCache(1000);
+        assertNull(cache.get(mKey));
+        cache.put(mKey, cache.generation(), page(10));
+
+        HistoryArrayCursor hit = cache.get(mKey);
+        assertNotNull(hit);
+        assertEquals(10, hit.getCount());
+        assertTrue(hit.moveToFirst());
+        assertEquals(10, hit.getLong(0));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    public void testWriteInvalidatesPages() {
+        HistoryPageCache cache = new HistoryPageCache(1000);
+        cache.put(mKey, cache.generation(), page(10));
+        cache.invalidate();
+        assertNull(cache.get(mKey));
+    }
+
+    public void testPageReadDuringWriteIsNotCached() {
+        HistoryPageCache cache = new HistoryPageCache(1000);
+        long generation = cache.generation();
+        cache.invalidate();
+        cache.put(mKey, generation, page(10));
+        assertNull(cache.get(mKey));
+    }
+
+    public void testParameterOrderDoesNotMatter() {
+        Uri reordered = HistoryContract.HISTORY_ALL_CONTENTURI.buildUpon()
+                .appendQueryParameter(HistoryContract.QUERY_PARAMETER_LIMIT, "50")
+                .appendQueryParameter(HistoryContract.QUERY_PARAMETER_BEFORE, "1000")
+                .build();
+        assertEquals(
+                HistoryPageCache.keyOf(HistoryProvider.HISTORY_ALL_QUERY,
+                        HistoryContract.buildAllUri(1000L, 50), PROJECTION, null, null, null),
+                HistoryPageCache.keyOf(HistoryProvider.HISTORY_ALL_QUERY,
+                        reordered, PROJECTION, null, null, null));
+    }
+}
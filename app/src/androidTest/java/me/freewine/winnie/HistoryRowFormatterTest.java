@@ -0,0 +1,66 @@
+package me.freewine.winnie;
+
+import android.os.Debug;
+
+import junit.framework.TestCase;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Checks that the fields of a history row are formatted correctly and without allocating. Only
+ * the formatting step is measured; the TextView calls of a bind are outside its scope.
+ */
+public class HistoryRowFormatterTest extends TestCase {
+    private static final int BINDS = 10000;
+
+    // Rows a minute apart, so the binds cross several day boundaries
+    private static final long START_TIME = 1416096000000L;
+    private static final long ROW_INTERVAL = 60 * 1000;
+
+    private final TimeZone mTimeZone = TimeZone.getDefault();
+    private final char[] mCntChars = new char[HistoryRowFormatter.COUNT_LENGTH];
+    private final char[] mChangeChars = new char[HistoryRowFormatter.MAX_INT_LENGTH];
+    private final char[] mTimeChars = new char[HistoryRowFormatter.TIME_LENGTH];
+
+    public void testFormatsLikeSimpleDateFormat() {
+        HistoryRowFormatter formatter = new HistoryRowFormatter(mTimeZone);
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        sdf.setTimeZone(mTimeZone);
+
+        for (int i = 0; i < BINDS; i += 7) {
+            long time = START_TIME + i * ROW_INTERVAL;
+            int length = formatter.formatTime(time, mTimeChars);
+            assertEquals(sdf.format(new Date(time)), new String(mTimeChars, 0, length));
+        }
+
+        int length = formatter.formatCount(150, mCntChars);
+        assertEquals("剩余：150", new String(mCntChars, 0, length));
+        length = formatter.formatChange(-50, mChangeChars);
+        assertEquals("-50", new String(mChangeChars, 0, length));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testFormattingAllocatesNothing() {
+        HistoryRowFormatter formatter = new HistoryRowFormatter(mTimeZone);
+
+        // Warms up the formatter once outside of the measured section
+        format(formatter, 0);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < BINDS; i++) {
+            format(formatter, i);
+        }
+        Debug.stopAllocCounting();
+
+        assertEquals(0, Debug.getThreadAllocCount());
+    }
+
+    private void format(HistoryRowFormatter formatter, int row) {
+        formatter.formatCount(150 + row * 50, mCntChars);
+        formatter.formatChange(row % 2 == 0 ? 50 : -50, mChangeChars);
+        formatter.formatTime(START_TIME + row * ROW_INTERVAL, mTimeChars);
+    }
+}
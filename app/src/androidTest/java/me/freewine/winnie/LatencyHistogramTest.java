@@ -0,0 +1,53 @@
+package me.freewine.winnie;
+
+import android.os.Bundle;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the bucket boundaries and percentiles of the latency histogram.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBucketsCoverEveryLatency() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        for (int bucket = 1; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long lowest = LatencyHistogram.lowestOf(bucket);
+            assertTrue(lowest > LatencyHistogram.lowestOf(bucket - 1));
+            assertEquals(bucket, LatencyHistogram.bucketOf(lowest));
+            assertEquals(bucket - 1, LatencyHistogram.bucketOf(lowest - 1));
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    public void testBucketsStayNarrow() {
+        for (int bucket = 8; bucket < LatencyHistogram.BUCKETS - 1; bucket++) {
+            long lowest = LatencyHistogram.lowestOf(bucket);
+            long width = LatencyHistogram.lowestOf(bucket + 1) - lowest;
+            assertTrue(width * 8 <= lowest);
+        }
+    }
+
+    public void testSnapshot() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L, 2);
+        }
+        Bundle snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getLong(HistoryContract.METRIC_CALLS));
+        assertEquals(200, snapshot.getLong(HistoryContract.METRIC_ROWS));
+        assertEquals(5050, snapshot.getLong(HistoryContract.METRIC_TOTAL_US));
+        assertEquals(100, snapshot.getLong(HistoryContract.METRIC_MAX_US));
+        // Each percentile lands in the bucket of the exact value, at most 12.5% above it
+        assertTrue(snapshot.getLong(HistoryContract.METRIC_P50_US) >= 50);
+        assertTrue(snapshot.getLong(HistoryContract.METRIC_P50_US) <= 56);
+        assertTrue(snapshot.getLong(HistoryContract.METRIC_P99_US) >= 99);
+        assertTrue(snapshot.getLong(HistoryContract.METRIC_P99_US) <= 100);
+
+        long total = 0;
+        for (long count : snapshot.getLongArray(HistoryContract.METRIC_BUCKET_COUNTS)) {
+            total += count;
+        }
+        assertEquals(100, total);
+    }
+}
@@ -0,0 +1,61 @@
+package me.freewine.winnie;
+
+import android.app.Activity;
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+/**
+ * Debug screen showing the latency histograms of {@link HistoryProvider}, read through
+ * {@link HistoryContract#METHOD_METRICS}. Tapping the text reads them again. Opened with
+ * "adb shell am start -n me.freewine.winnie/.MetricsActivity".
+ */
+public class MetricsActivity extends Activity {
+    private TextView mText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        int padding = getResources().getDimensionPixelSize(R.dimen.activity_horizontal_margin);
+        mText = new TextView(this);
+        mText.setTypeface(Typeface.MONOSPACE);
+        mText.setPadding(padding, padding, padding, padding);
+        mText.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                refresh();
+            }
+        });
+        ScrollView scroll = new ScrollView(this);
+        scroll.addView(mText);
+        setContentView(scroll);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    private void refresh() {
+        Bundle snapshot = getContentResolver().call(HistoryContract.CONTENT_URI,
+                HistoryContract.METHOD_METRICS, null, null);
+        StringBuilder text = new StringBuilder(HistoryMetrics.format(snapshot));
+        for (String operation : snapshot.getStringArray(HistoryContract.EXTRA_OPERATIONS)) {
+            Bundle metrics = snapshot.getBundle(operation);
+            long[] lowest = metrics.getLongArray(HistoryContract.METRIC_BUCKET_LOWEST_US);
+            long[] counts = metrics.getLongArray(HistoryContract.METRIC_BUCKET_COUNTS);
+            if (lowest.length == 0) {
+                continue;
+            }
+            text.append('\n').append(operation).append('\n');
+            for (int i = 0; i < lowest.length; i++) {
+                text.append(String.format("%10d us %8d\n", lowest[i], counts[i]));
+            }
+        }
+        text.append('\n').append(getString(R.string.metrics_refresh_hint));
+        mText.setText(text);
+    }
+}
@@ -0,0 +1,16 @@
+package me.freewine.winnie;
+
+import android.content.Context;
+
+/**
+ * Application of the instrumented build type, declared by its manifest in place of
+ * {@link WinnieApplication}. Starts the {@link LaunchTracer} before anything else runs.
+ */
+public class InstrumentedApplication extends WinnieApplication {
+
+    @Override
+    protected void attachBaseContext(Context base) {
+        super.attachBaseContext(base);
+        StartupTrace.install(new LaunchTracer(this));
+    }
+}
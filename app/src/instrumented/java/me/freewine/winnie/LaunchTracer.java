@@ -0,0 +1,163 @@
+package me.freewine.winnie;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cold start trace of the instrumented build type, installed into {@link StartupTrace} by
+ * {@link InstrumentedApplication}.
+ * <p/>
+ * It starts as the application is attached and turns on a {@link StrictModeCollector}. Marks
+ * are then recorded in milliseconds since that start, up to the first frame drawn by the first
+ * activity watched with {@link #watchFirstFrame}. {@link #REPORT_DELAY_MS} later, so that the
+ * disk access right after the first frame is counted too, the marks and the StrictMode
+ * violations are written to a JSON file in {@link #REPORT_DIR} of the files directory, one per
+ * launch, keeping the newest {@link #MAX_REPORTS}:
+ * "adb shell run-as me.freewine.winnie ls files/startup-traces".
+ */
+final class LaunchTracer implements StartupTrace.Tracer {
+    // Identifies log statements issued by this component
+    private static final String LOG_TAG = "LaunchTracer";
+
+    static final String REPORT_DIR = "startup-traces";
+    private static final int MAX_REPORTS = 20;
+
+    // How long after the first frame the report is written
+    static final long REPORT_DELAY_MS = 5000;
+
+    private final Context mContext;
+    private final StrictModeCollector mCollector;
+    private final long mStartUptime;
+    private final long mStartWallTime;
+
+    // All guarded by this
+    private final ArrayList<String> mMarkNames = new ArrayList<String>();
+    private final ArrayList<Long> mMarkTimes = new ArrayList<Long>();
+    // Set once the first frame is drawn; later marks are ignored
+    private boolean mFinished;
+
+    /**
+     * Starts the trace and the StrictMode policies. Created as the application is attached,
+     * before the content providers are, so that their main-thread work is traced too.
+     *
+     * @param application The application being attached
+     */
+    LaunchTracer(Context application) {
+        mStartUptime = SystemClock.uptimeMillis();
+        mStartWallTime = System.currentTimeMillis();
+        mContext = application;
+        mCollector = new StrictModeCollector(Process.myPid());
+        mCollector.start();
+    }
+
+    @Override
+    public synchronized void mark(String name) {
+        if (mFinished) {
+            return;
+        }
+        mMarkNames.add(name);
+        mMarkTimes.add(SystemClock.uptimeMillis() - mStartUptime);
+    }
+
+    @Override
+    public void watchFirstFrame(Activity activity) {
+        final View decor = activity.getWindow().getDecorView();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        decor.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decor.getViewTreeObserver().removeOnPreDrawListener(this);
+                // Runs once the traversal that draws the frame has finished
+                handler.postAtFrontOfQueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish();
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    private void finish() {
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            mark(StartupTrace.MARK_FIRST_FRAME);
+            mFinished = true;
+        }
+        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                // Written off the main thread, or the report would be its own violation
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeReport();
+                    }
+                }, LOG_TAG).start();
+            }
+        }, REPORT_DELAY_MS);
+    }
+
+    private void writeReport() {
+        File dir = new File(mContext.getFilesDir(), REPORT_DIR);
+        String report;
+        synchronized (this) {
+            try {
+                report = buildReport().toString(2);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, "Cannot build the startup report", e);
+                return;
+            }
+        }
+        // Launch times all have the same number of digits, so names sort by age
+        ReportFiles.write(dir, "launch-" + mStartWallTime + ".json", report, MAX_REPORTS);
+    }
+
+    private JSONObject buildReport() throws JSONException {
+        JSONObject report = new JSONObject();
+        report.put("launch_time", mStartWallTime);
+        report.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        report.put("sdk", Build.VERSION.SDK_INT);
+        report.put("version_code", BuildConfig.VERSION_CODE);
+
+        JSONObject marks = new JSONObject();
+        for (int i = 0; i < mMarkNames.size(); i++) {
+            marks.put(mMarkNames.get(i), mMarkTimes.get(i).longValue());
+        }
+        report.put("marks_ms", marks);
+
+        report.put("violations", mCollector.count());
+        report.put("main_thread_violations", mCollector.mainThreadCount());
+        JSONArray details = new JSONArray();
+        List<StrictModeCollector.Violation> violations = mCollector.violations();
+        for (StrictModeCollector.Violation violation : violations) {
+            JSONObject detail = new JSONObject();
+            detail.put("message", violation.mMessage);
+            detail.put("main_thread", violation.mMainThread);
+            if (violation.mFrame != null) {
+                detail.put("frame", violation.mFrame);
+            }
+            details.put(detail);
+        }
+        report.put("violation_details", details);
+        return report;
+    }
+}
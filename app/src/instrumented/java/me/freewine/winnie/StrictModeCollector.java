@@ -0,0 +1,153 @@
+package me.freewine.winnie;
+
+import android.os.StrictMode;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns on StrictMode disk and leak policies and collects the violations of this process.
+ * <p/>
+ * StrictMode before API 28 cannot hand violations to the app, only log them, so the collector
+ * follows the StrictMode tag of logcat, which an app may read for its own process, and keeps
+ * the violations logged by this process with the thread they happened on and the first frame of
+ * the app in their stack. Only part of the instrumented build type, see {@link LaunchTracer}.
+ */
+final class StrictModeCollector {
+    // Identifies log statements issued by this component
+    private static final String LOG_TAG = "StrictModeCollector";
+
+    private static final String STRICT_MODE_TAG = "StrictMode";
+    private static final String VIOLATION_PREFIX = "StrictMode policy violation";
+    private static final String APP_FRAME = "at " + StrictModeCollector.class.getPackage().getName();
+
+    // Violations kept; later ones are only counted
+    private static final int MAX_VIOLATIONS = 100;
+
+    /**
+     * One violation: its message, whether it happened on the main thread and the first frame
+     * of the app in its stack, or null if there is none.
+     */
+    static final class Violation {
+        final String mMessage;
+        final boolean mMainThread;
+        String mFrame;
+
+        Violation(String message, boolean mainThread) {
+            mMessage = message;
+            mMainThread = mainThread;
+        }
+    }
+
+    private final String mPid;
+
+    // Guarded by this
+    private final ArrayList<Violation> mViolations = new ArrayList<Violation>();
+    private int mCount;
+    private int mMainThreadCount;
+    // The violation whose stack is being read, null if it was not kept
+    private Violation mCurrent;
+
+    /**
+     * @param pid The process whose violations are collected, normally this one
+     */
+    StrictModeCollector(int pid) {
+        mPid = String.valueOf(pid);
+    }
+
+    /**
+     * Enables the policies for the whole process and starts following logcat.
+     */
+    void start() {
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .penaltyLog()
+                .build());
+        StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                .detectActivityLeaks()
+                .detectLeakedClosableObjects()
+                .detectLeakedRegistrationObjects()
+                .detectLeakedSqlLiteObjects()
+                .penaltyLog()
+                .build());
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                follow();
+            }
+        }, LOG_TAG);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void follow() {
+        Process logcat = null;
+        try {
+            logcat = new ProcessBuilder("logcat", "-v", "threadtime", STRICT_MODE_TAG + ":D", "*:S")
+                    .redirectErrorStream(true)
+                    .start();
+            BufferedReader in = new BufferedReader(new InputStreamReader(logcat.getInputStream()));
+            String line;
+            while ((line = in.readLine()) != null) {
+                parse(line);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot read logcat", e);
+        } finally {
+            if (logcat != null) {
+                logcat.destroy();
+            }
+        }
+    }
+
+    /**
+     * Parses one threadtime line: date, time, pid, tid, priority, then "tag: message".
+     */
+    void parse(String line) {
+        String[] fields = line.trim().split("\\s+", 6);
+        if (fields.length < 6 || !mPid.equals(fields[2])
+                || !fields[5].startsWith(STRICT_MODE_TAG)) {
+            return;
+        }
+        String message = fields[5].substring(fields[5].indexOf(':') + 1).trim();
+        synchronized (this) {
+            if (message.startsWith(VIOLATION_PREFIX)) {
+                mCount++;
+                // The main thread is the one whose id is the process id
+                boolean mainThread = fields[3].equals(fields[2]);
+                if (mainThread) {
+                    mMainThreadCount++;
+                }
+                mCurrent = null;
+                if (mViolations.size() < MAX_VIOLATIONS) {
+                    mCurrent = new Violation(message, mainThread);
+                    mViolations.add(mCurrent);
+                }
+            } else if (message.startsWith(APP_FRAME) && mCurrent != null
+                    && mCurrent.mFrame == null) {
+                mCurrent.mFrame = message.substring(3);
+            }
+        }
+    }
+
+    synchronized int count() {
+        return mCount;
+    }
+
+    synchronized int mainThreadCount() {
+        return mMainThreadCount;
+    }
+
+    /**
+     * Returns the first violations collected, up to {@link #MAX_VIOLATIONS}.
+     */
+    synchronized List<Violation> violations() {
+        return new ArrayList<Violation>(mViolations);
+    }
+}
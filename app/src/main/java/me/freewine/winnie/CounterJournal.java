@@ -0,0 +1,239 @@
+package me.freewine.winnie;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped store of the count last shown on the main screen, read when the screen starts.
+ * <p/>
+ * The file holds two slots. Each write goes to the slot not holding the newest value, with a
+ * sequence number one above it and a CRC32 of the slot, so a write torn by a crash can only
+ * damage the older value: reads pick the valid slot with the highest sequence number. Writes
+ * touch 32 bytes of mapped memory, which the kernel writes back even if the process dies;
+ * {@link #force()} also makes them survive a power loss.
+ * <p/>
+ * The history log stays the source of truth; this is a cache that lets the screen show a count
+ * before the provider has recovered it. The file is mapped off the main thread, see
+ * {@link #load}; after that, not thread-safe and meant to be used from the main thread, except
+ * for {@link #force()}.
+ */
+public class CounterJournal {
+    // Identifies log statements issued by this component
+    private static final String LOG_TAG = "CounterJournal";
+
+    private static final String FILE_NAME = "counter.journal";
+
+    // Returned by read() when neither slot holds a valid value
+    public static final int NO_COUNT = -1;
+
+    // Marks an initialized slot, "WCNT"
+    private static final int MAGIC = 0x57434e54;
+
+    // Slot layout: magic, sequence, count, time, then a CRC32 of the preceding bytes
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SEQUENCE = 4;
+    private static final int OFFSET_COUNT = 12;
+    private static final int OFFSET_TIME = 16;
+    private static final int OFFSET_CRC = 24;
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_COUNT = 2;
+
+    /**
+     * Receives the journal on the main thread once its file is mapped.
+     */
+    public interface Callback {
+        void onJournalReady(CounterJournal journal);
+    }
+
+    // Guarded by the class: the journal once mapped, whether it is being mapped, and the
+    // callbacks waiting for it
+    private static CounterJournal sInstance;
+    private static boolean sLoading;
+    private static final ArrayList<Callback> sCallbacks = new ArrayList<Callback>();
+
+    // Null if the file could not be mapped, in which case the journal holds nothing
+    private final MappedByteBuffer mBuffer;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mScratch = new byte[OFFSET_CRC];
+
+    // Slot and sequence number of the newest valid value, -1 if there is none
+    private int mNewestSlot = -1;
+    private long mSequence;
+
+    /**
+     * Starts mapping the process-wide journal on a background thread, unless it is mapped or
+     * being mapped already. Called as the application starts, so that the file is usually
+     * mapped by the time the main screen asks for it; opening, sizing and mapping it are disk
+     * access the main thread must not wait for.
+     *
+     * @param context Any context; only its application context is retained
+     */
+    public static void preload(Context context) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (CounterJournal.class) {
+            if (sInstance != null || sLoading) {
+                return;
+            }
+            sLoading = true;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final CounterJournal journal =
+                        new CounterJournal(new File(appContext.getFilesDir(), FILE_NAME));
+                synchronized (CounterJournal.class) {
+                    sInstance = journal;
+                    sLoading = false;
+                }
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ArrayList<Callback> callbacks;
+                        synchronized (CounterJournal.class) {
+                            callbacks = new ArrayList<Callback>(sCallbacks);
+                            sCallbacks.clear();
+                        }
+                        for (Callback callback : callbacks) {
+                            callback.onJournalReady(journal);
+                        }
+                    }
+                });
+            }
+        }, LOG_TAG).start();
+    }
+
+    /**
+     * Hands the process-wide journal to a callback, at once if it is mapped, otherwise on the
+     * main thread once {@link #preload} has mapped it. Call from the main thread.
+     *
+     * @param context  Any context; only used to start mapping the file if needed
+     * @param callback Receives the journal, unless removed with {@link #cancel} first
+     */
+    public static void load(Context context, Callback callback) {
+        CounterJournal journal;
+        synchronized (CounterJournal.class) {
+            journal = sInstance;
+            if (journal == null) {
+                sCallbacks.add(callback);
+            }
+        }
+        if (journal != null) {
+            callback.onJournalReady(journal);
+        } else {
+            preload(context);
+        }
+    }
+
+    /**
+     * Removes a callback passed to {@link #load} that has not been called yet.
+     */
+    public static void cancel(Callback callback) {
+        synchronized (CounterJournal.class) {
+            sCallbacks.remove(callback);
+        }
+    }
+
+    /**
+     * Maps a journal file, creating it if needed.
+     *
+     * @param file The journal file
+     */
+    CounterJournal(File file) {
+        MappedByteBuffer buffer = null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(SLOT_SIZE * SLOT_COUNT);
+                // The mapping stays valid after the file is closed
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        SLOT_SIZE * SLOT_COUNT);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to map " + file, e);
+        }
+        mBuffer = buffer;
+
+        if (mBuffer != null) {
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                int offset = slot * SLOT_SIZE;
+                if (isValid(offset)) {
+                    long sequence = mBuffer.getLong(offset + OFFSET_SEQUENCE);
+                    if (mNewestSlot < 0 || sequence > mSequence) {
+                        mNewestSlot = slot;
+                        mSequence = sequence;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the newest count written, or {@link #NO_COUNT} if there is none.
+     */
+    public int read() {
+        if (mNewestSlot < 0) {
+            return NO_COUNT;
+        }
+        return mBuffer.getInt(mNewestSlot * SLOT_SIZE + OFFSET_COUNT);
+    }
+
+    /**
+     * Records a count, overwriting the older of the two slots.
+     *
+     * @param count The count, zero or more
+     */
+    public void write(int count) {
+        if (mBuffer == null) {
+            return;
+        }
+        int slot = mNewestSlot < 0 ? 0 : (mNewestSlot + 1) % SLOT_COUNT;
+        int offset = slot * SLOT_SIZE;
+        long sequence = mSequence + 1;
+
+        mBuffer.putInt(offset + OFFSET_MAGIC, MAGIC);
+        mBuffer.putLong(offset + OFFSET_SEQUENCE, sequence);
+        mBuffer.putInt(offset + OFFSET_COUNT, count);
+        mBuffer.putLong(offset + OFFSET_TIME, System.currentTimeMillis());
+        mBuffer.putInt(offset + OFFSET_CRC, checksum(offset));
+
+        mNewestSlot = slot;
+        mSequence = sequence;
+    }
+
+    /**
+     * Writes the mapped slots through to storage. Waits for the disk, so call it off the main
+     * thread; a write racing with it is written through by the next call.
+     */
+    public void force() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    private boolean isValid(int offset) {
+        return mBuffer.getInt(offset + OFFSET_MAGIC) == MAGIC
+                && mBuffer.getInt(offset + OFFSET_CRC) == checksum(offset)
+                && mBuffer.getInt(offset + OFFSET_COUNT) >= 0;
+    }
+
+    private int checksum(int offset) {
+        for (int i = 0; i < OFFSET_CRC; i++) {
+            mScratch[i] = mBuffer.get(offset + i);
+        }
+        mCrc.reset();
+        mCrc.update(mScratch, 0, OFFSET_CRC);
+        return (int) mCrc.getValue();
+    }
+}
@@ -1,24 +1,23 @@
 package me.freewine.winnie;
 
 import android.app.Activity;
-import android.content.Context;
-import android.content.CursorLoader;
+import android.app.DatePickerDialog;
 import android.content.Loader;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.app.Fragment;
 import android.app.LoaderManager;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
-import android.widget.ListView;
+import android.widget.DatePicker;
 import android.widget.TextView;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Calendar;
+import java.util.TimeZone;
 
 
 public class HistoryActivity extends Activity {
@@ -61,61 +60,212 @@ public class HistoryActivity extends Activity {
      * A placeholder fragment containing a simple view.
      */
     public static class PlaceholderFragment extends Fragment implements
-            LoaderManager.LoaderCallbacks<Cursor> {
+            LoaderManager.LoaderCallbacks<HistorySnapshot> {
 
-        private ListView historyList;
+        private RecyclerView historyList;
+        private LinearLayoutManager mLayoutManager;
         private HistoryAdapter mAdapter;
 
+        // Times the frames of the list, the row bindings and the snapshot swaps
+        private final JankMonitor mJankMonitor = new JankMonitor("history");
+
         // Identifies a particular Loader being used in this component
         private static final int HISTORY_LOADER = 0;
-        private static final String[] PROJECTION =
-                {
-                        HistoryContract._ID,
-                        HistoryContract.COLUMN_NAME_CNT,
-                        HistoryContract.COLUMN_NAME_CHANGE,
-                        HistoryContract.COLUMN_NAME_TIME,
-                };
+
+        // Number of rows left below the last bound one when the next page is requested
+        private static final int PREFETCH_DISTANCE = 10;
+
+        // Keys of the loader arguments and saved state holding the time range shown
+        private static final String ARG_FILTER = "filter";
+        private static final String ARG_SINCE = "since";
+        private static final String ARG_UNTIL = "until";
+
+        // Menu item of the filter in use, and the time range it selects
+        private int mFilterId = R.id.filter_all;
+        private long mSince;
+        private long mUntil;
 
         public PlaceholderFragment() {
         }
 
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            setHasOptionsMenu(true);
+            if (savedInstanceState != null) {
+                mFilterId = savedInstanceState.getInt(ARG_FILTER, R.id.filter_all);
+                mSince = savedInstanceState.getLong(ARG_SINCE);
+                mUntil = savedInstanceState.getLong(ARG_UNTIL);
+            }
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            mJankMonitor.start(getActivity());
+        }
+
+        @Override
+        public void onPause() {
+            mJankMonitor.stop();
+            super.onPause();
+        }
+
+        @Override
+        public void onSaveInstanceState(Bundle outState) {
+            super.onSaveInstanceState(outState);
+            outState.putInt(ARG_FILTER, mFilterId);
+            outState.putLong(ARG_SINCE, mSince);
+            outState.putLong(ARG_UNTIL, mUntil);
+        }
+
+        @Override
+        public void onPrepareOptionsMenu(Menu menu) {
+            MenuItem item = menu.findItem(mFilterId);
+            if (item != null) {
+                item.setChecked(true);
+            }
+        }
+
+        @Override
+        public boolean onOptionsItemSelected(MenuItem item) {
+            int id = item.getItemId();
+            // Starts at midnight today, local time; calendar fields keep the days right across
+            // daylight saving changes
+            Calendar start = Calendar.getInstance();
+            start.set(Calendar.HOUR_OF_DAY, 0);
+            start.set(Calendar.MINUTE, 0);
+            start.set(Calendar.SECOND, 0);
+            start.set(Calendar.MILLISECOND, 0);
+            Calendar end = (Calendar) start.clone();
+
+            if (id == R.id.filter_all) {
+                setFilter(id, 0, 0);
+            } else if (id == R.id.filter_day) {
+                end.add(Calendar.DAY_OF_MONTH, 1);
+                setFilter(id, start.getTimeInMillis(), end.getTimeInMillis());
+            } else if (id == R.id.filter_week) {
+                start.set(Calendar.DAY_OF_WEEK, start.getFirstDayOfWeek());
+                end.setTimeInMillis(start.getTimeInMillis());
+                end.add(Calendar.DAY_OF_MONTH, 7);
+                setFilter(id, start.getTimeInMillis(), end.getTimeInMillis());
+            } else if (id == R.id.filter_month) {
+                start.set(Calendar.DAY_OF_MONTH, 1);
+                end.setTimeInMillis(start.getTimeInMillis());
+                end.add(Calendar.MONTH, 1);
+                setFilter(id, start.getTimeInMillis(), end.getTimeInMillis());
+            } else if (id == R.id.filter_custom) {
+                pickRange(start);
+            } else {
+                return super.onOptionsItemSelected(item);
+            }
+            return true;
+        }
+
+        /**
+         * Asks for the first then the last day of a custom range, both included.
+         *
+         * @param today Midnight today, the date both pickers start on
+         */
+        private void pickRange(final Calendar today) {
+            DatePickerDialog sinceDialog = new DatePickerDialog(getActivity(),
+                    new DatePickerDialog.OnDateSetListener() {
+                        @Override
+                        public void onDateSet(DatePicker view, int year, int month, int day) {
+                            final Calendar since = (Calendar) today.clone();
+                            since.set(year, month, day);
+
+                            DatePickerDialog untilDialog = new DatePickerDialog(getActivity(),
+                                    new DatePickerDialog.OnDateSetListener() {
+                                        @Override
+                                        public void onDateSet(DatePicker view, int year,
+                                                              int month, int day) {
+                                            Calendar until = (Calendar) today.clone();
+                                            until.set(year, month, day);
+                                            // Takes the dates in either order
+                                            Calendar first = until.before(since) ? until : since;
+                                            Calendar last = first == since ? until : since;
+                                            last.add(Calendar.DAY_OF_MONTH, 1);
+                                            setFilter(R.id.filter_custom,
+                                                    first.getTimeInMillis(),
+                                                    last.getTimeInMillis());
+                                        }
+                                    }, year, month, day);
+                            untilDialog.setTitle(R.string.filter_custom_until);
+                            untilDialog.show();
+                        }
+                    },
+                    today.get(Calendar.YEAR), today.get(Calendar.MONTH),
+                    today.get(Calendar.DAY_OF_MONTH));
+            sinceDialog.setTitle(R.string.filter_custom_since);
+            sinceDialog.show();
+        }
+
+        /**
+         * Shows the rows of a time range only, and restarts the loader for them.
+         *
+         * @param filterId The menu item of the filter
+         * @param since    The start of the range, inclusive; ignored for filter_all
+         * @param until    The end of the range, exclusive; ignored for filter_all
+         */
+        private void setFilter(int filterId, long since, long until) {
+            mFilterId = filterId;
+            mSince = since;
+            mUntil = until;
+            getActivity().invalidateOptionsMenu();
+            getLoaderManager().restartLoader(HISTORY_LOADER, filterArgs(), this);
+        }
+
+        private Bundle filterArgs() {
+            if (mFilterId == R.id.filter_all) {
+                return null;
+            }
+            Bundle args = new Bundle();
+            args.putLong(ARG_SINCE, mSince);
+            args.putLong(ARG_UNTIL, mUntil);
+            return args;
+        }
+
         @Override
         public View onCreateView(LayoutInflater inflater, ViewGroup container,
                                  Bundle savedInstanceState) {
             View rootView = inflater.inflate(R.layout.fragment_history, container, false);
 
-            historyList = (ListView) rootView.findViewById(R.id.history_lv);
+            historyList = (RecyclerView) rootView.findViewById(R.id.history_rv);
+            mLayoutManager = new LinearLayoutManager(getActivity());
+            historyList.setLayoutManager(mLayoutManager);
 
-            // Sets the ListView's data adapter
-            mAdapter = new HistoryAdapter(getActivity());
-            //historyList.setOnItemClickListener(this);
-            //historyList.setOnItemLongClickListener(this);
+            // Sets the RecyclerView's data adapter
+            mAdapter = new HistoryAdapter();
             historyList.setAdapter(mAdapter);
 
-            getLoaderManager().initLoader(HISTORY_LOADER, null, this);
+            getLoaderManager().initLoader(HISTORY_LOADER, filterArgs(), this);
 
             return rootView;
         }
 
         /*
          * This callback is invoked when the framework is starting or re-starting the Loader. It
-         * returns a CursorLoader object containing the desired query
+         * returns a loader that reads the history table one page at a time
          */
         @Override
-        public Loader<Cursor> onCreateLoader(int loaderID, Bundle bundle) {
+        public Loader<HistorySnapshot> onCreateLoader(int loaderID, Bundle bundle) {
         /*
          * Takes action based on the ID of the Loader that's being created
          */
             switch (loaderID) {
                 case HISTORY_LOADER:
-                    // Returns a new CursorLoader
-                    return new CursorLoader(
+                    // Restricts the loader to the time range of the filter, if there is one
+                    if (bundle != null) {
+                        return new HistoryPageLoader(getActivity(),
+                                HistoryContract.DEFAULT_PAGE_SIZE,
+                                bundle.getLong(ARG_SINCE), bundle.getLong(ARG_UNTIL));
+                    }
+
+                    // Returns a new loader that reads the table one page at a time, newest first
+                    return new HistoryPageLoader(
                             getActivity(),                                     // Context
-                            HistoryContract.HISTORY_TABLE_CONTENTURI,  // Table to query
-                            PROJECTION,                                        // Projection to return
-                            null,                                              // No selection clause
-                            null,                                              // No selection arguments
-                            HistoryContract._ID + " DESC"                                               // Default sort order
+                            HistoryContract.DEFAULT_PAGE_SIZE                  // Rows per page
                     );
                 default:
                     // An invalid id was passed in
@@ -126,54 +276,73 @@ public class HistoryActivity extends Activity {
         }
 
         /*
-         * Invoked when the CursorLoader finishes the query. A reference to the Loader and the
-         * returned Cursor are passed in as arguments
+         * Invoked when the loader delivers a new snapshot of the history rows
          */
         @Override
-        public void onLoadFinished(Loader<Cursor> loader, Cursor returnCursor) {
+        public void onLoadFinished(Loader<HistorySnapshot> loader, HistorySnapshot snapshot) {
+            // Keeps the newest row in view when rows are added on top of it
+            long start = mJankMonitor.begin();
+            boolean atTop = mLayoutManager.findFirstCompletelyVisibleItemPosition() <= 0;
 
-        /*
-         *  Changes the adapter's Cursor to be the results of the load. This forces the View to
-         *  redraw.
-         */
+            // Updates only the rows that differ from the previous snapshot
+            mAdapter.swapSnapshot(snapshot);
 
-            mAdapter.changeCursor(returnCursor);
+            if (atTop) {
+                historyList.scrollToPosition(0);
+            }
+            mJankMonitor.end(JankMonitor.OP_LOADER_SWAP, start);
         }
 
         /*
-         * Invoked when the CursorLoader is being reset. For example, this is called if the
-         * data in the provider changes and the Cursor becomes stale.
+         * Invoked when the loader is being reset.
          */
         @Override
-        public void onLoaderReset(Loader<Cursor> loader) {
+        public void onLoaderReset(Loader<HistorySnapshot> loader) {
 
-            // Sets the Adapter's backing data to null. This prevents memory leaks.
-            mAdapter.changeCursor(null);
+            // Sets the Adapter's backing data to empty. This prevents memory leaks.
+            mAdapter.swapSnapshot(HistorySnapshot.EMPTY);
         }
 
         /**
-         * Defines a custom View adapter that extends CursorAdapter.
-         * 根据收或者发的消息显示不同方向的聊天气泡.
+         * Requests the next page of older rows from the loader.
          */
-        private class HistoryAdapter extends CursorAdapter {
+        private void loadMore() {
+            Loader<HistorySnapshot> loader = getLoaderManager().getLoader(HISTORY_LOADER);
+            if (loader != null) {
+                ((HistoryPageLoader) loader).loadMore();
+            }
+        }
 
-            /**
-             * Simplified constructor that calls the super constructor with the input Context,
-             * a null value for Cursor, and no flags
-             *
-             * @param context A Context for this object
-             */
-            public HistoryAdapter(Context context) {
-                super(context, null, false);
+        /**
+         * Defines a RecyclerView adapter over a {@link HistorySnapshot}. New snapshots are
+         * compared with the current one and only the rows that were inserted, removed or changed
+         * are dispatched to the RecyclerView.
+         */
+        private class HistoryAdapter extends RecyclerView.Adapter<HistoryAdapter.ViewHolder> {
+            private HistorySnapshot mSnapshot = HistorySnapshot.EMPTY;
+
+            // Shared by every ViewHolder; binding happens on the main thread only
+            private final HistoryRowFormatter mFormatter =
+                    new HistoryRowFormatter(TimeZone.getDefault());
+
+            public HistoryAdapter() {
+                setHasStableIds(true);
             }
 
-            public class ViewHolder {
+            public class ViewHolder extends RecyclerView.ViewHolder {
                 // each data item is just a string in this case
                 TextView tv_cnt;
                 TextView tv_change;
                 TextView tv_time;
 
+                // Reused text buffers, so formatting a row allocates nothing; TextView may still
+                // allocate as it takes the text
+                final char[] cntChars = new char[HistoryRowFormatter.COUNT_LENGTH];
+                final char[] changeChars = new char[HistoryRowFormatter.MAX_INT_LENGTH];
+                final char[] timeChars = new char[HistoryRowFormatter.TIME_LENGTH];
+
                 public ViewHolder(View v) {
+                    super(v);
                     tv_cnt = (TextView) v.findViewById(R.id.tv_cnt);
                     tv_change = (TextView) v.findViewById(R.id.tv_change);
                     tv_time = (TextView) v.findViewById(R.id.tv_time);
@@ -181,52 +350,117 @@ public class HistoryActivity extends Activity {
             }
 
             /**
-             * Binds a View and a Cursor
+             * Replaces the rows shown by the adapter and notifies the RecyclerView of the
+             * differences.
+             *
+             * @param snapshot The new rows
+             */
+            public void swapSnapshot(HistorySnapshot snapshot) {
+                HistorySnapshot old = mSnapshot;
+                mSnapshot = snapshot;
+                dispatchDiff(old, snapshot);
+            }
+
+            /**
+             * Walks two snapshots, both sorted by _ID newest first, and dispatches each run of
+             * inserted, removed or changed rows as a single range update. Positions are those of
+             * the list as it stands after the preceding updates, as the RecyclerView expects.
              *
-             * @param view    An existing View object
-             * @param context A Context for the View and Cursor
-             * @param cursor  The Cursor to bind to the View, representing one row of the returned query.
+             * @param old     The rows shown so far
+             * @param current The rows to show from now on
              */
+            private void dispatchDiff(HistorySnapshot old, HistorySnapshot current) {
+                int oldSize = old.size();
+                int newSize = current.size();
+                int i = 0;
+                int j = 0;
+                int position = 0;
+
+                while (i < oldSize || j < newSize) {
+                    int start = j;
+                    while (j < newSize && (i >= oldSize || current.getId(j) > old.getId(i))) {
+                        j++;
+                    }
+                    if (j > start) {
+                        notifyItemRangeInserted(position, j - start);
+                        position += j - start;
+                        continue;
+                    }
+
+                    start = i;
+                    while (i < oldSize && (j >= newSize || old.getId(i) > current.getId(j))) {
+                        i++;
+                    }
+                    if (i > start) {
+                        notifyItemRangeRemoved(position, i - start);
+                        continue;
+                    }
+
+                    // Both snapshots hold the row; finds the run of rows whose contents changed
+                    start = position;
+                    while (i < oldSize && j < newSize && old.getId(i) == current.getId(j)
+                            && !old.sameContents(i, current, j)) {
+                        i++;
+                        j++;
+                        position++;
+                    }
+                    if (position > start) {
+                        notifyItemRangeChanged(start, position - start);
+                    } else {
+                        i++;
+                        j++;
+                        position++;
+                    }
+                }
+            }
+
             @Override
-            public void bindView(View view, Context context, Cursor cursor) {
-                // Gets a handle to the View
-                ViewHolder vh = (ViewHolder) view.getTag();
+            public int getItemCount() {
+                return mSnapshot.size();
+            }
 
-                final String cnt = String.valueOf(cursor.getInt(cursor.getColumnIndex(HistoryContract.COLUMN_NAME_CNT)));
-                final String change = String.valueOf(cursor.getString(cursor.getColumnIndex(HistoryContract.COLUMN_NAME_CHANGE)));
-                final long timeStamp = cursor.getLong(cursor.getColumnIndex(HistoryContract.COLUMN_NAME_TIME));
+            @Override
+            public long getItemId(int position) {
+                return mSnapshot.getId(position);
+            }
 
+            /**
+             * Binds a row of the snapshot to a ViewHolder
+             *
+             * @param vh       An existing ViewHolder
+             * @param position The position of the row in the snapshot
+             */
+            @Override
+            public void onBindViewHolder(ViewHolder vh, int position) {
+                long start = mJankMonitor.begin();
+                int length = mFormatter.formatCount(mSnapshot.getCount(position), vh.cntChars);
+                vh.tv_cnt.setText(vh.cntChars, 0, length);
 
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                String timeStr = sdf.format(new Date(timeStamp));
+                length = mFormatter.formatChange(mSnapshot.getChange(position), vh.changeChars);
+                vh.tv_change.setText(vh.changeChars, 0, length);
 
-                vh.tv_cnt.setText("剩余：" + cnt);
-                vh.tv_change.setText(change);
-                vh.tv_time.setText(timeStr);
+                length = mFormatter.formatTime(mSnapshot.getTime(position), vh.timeChars);
+                vh.tv_time.setText(vh.timeChars, 0, length);
 
+                // Fetches the next page of older rows as the end of the list comes into view
+                if (mSnapshot.hasOlder() && position >= mSnapshot.size() - PREFETCH_DISTANCE) {
+                    loadMore();
+                }
+                mJankMonitor.end(JankMonitor.OP_BIND_VIEW, start);
             }
 
             /**
-             * Creates a new View that shows the contents of the Cursor
+             * Creates a new ViewHolder for a history row
              *
-             * @param context   A Context for the View and Cursor
-             * @param cursor    The Cursor to display. This is a single row of the returned query
              * @param viewGroup The viewGroup that's the parent of the new View
-             * @return the newly-created View
+             * @param viewType  The view type of the new View
+             * @return the newly-created ViewHolder
              */
             @Override
-            public View newView(Context context, Cursor cursor, ViewGroup viewGroup) {
-                View layoutView;
-
-                // Gets a new layout inflater instance
-                LayoutInflater inflater = LayoutInflater.from(context);
-
-                layoutView = inflater.inflate(R.layout.history_item, null);
-                ViewHolder vh = new ViewHolder(layoutView);
-
-                // Sets the layoutView's tag to be the same as the thumbnail image tag.
-                layoutView.setTag(vh);
-                return layoutView;
+            public ViewHolder onCreateViewHolder(ViewGroup viewGroup, int viewType) {
+                View layoutView = LayoutInflater.from(viewGroup.getContext())
+                        .inflate(R.layout.history_item, viewGroup, false);
+                return new ViewHolder(layoutView);
             }
 
         }
@@ -0,0 +1,340 @@
+package me.freewine.winnie;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Cold storage for history rows that have passed the retention period.
+ * <p/>
+ * {@link #archive} moves the oldest rows of the history table into blocks of up to
+ * {@link #BLOCK_ROWS} rows, one blob per block in the archive table. Within a block each row is
+ * written as four varints: the _ID as a delta from the previous row, then the time as a zigzag
+ * delta from the previous row, then the count and the change, both zigzag encoded. A typical row
+ * takes 6 to 8 bytes instead of the 30 or so of a table row and its index entries.
+ * <p/>
+ * Only rows included in the newest checkpoint are archived, so recovering the count never
+ * needs them, and the rollups already count them. {@link #query} reads them back, newest first.
+ */
+final class HistoryArchive {
+    // Identifies log statements issued by this component
+    private static final String LOG_TAG = "HistoryArchive";
+
+    private static final String TABLE_NAME = "history_archive";
+    // _IDs of the first and last rows of a block, and the earliest and latest of their times
+    private static final String COLUMN_NAME_FIRST_ID = "first_id";
+    private static final String COLUMN_NAME_LAST_ID = "last_id";
+    private static final String COLUMN_NAME_FIRST_TIME = "first_time";
+    private static final String COLUMN_NAME_LAST_TIME = "last_time";
+    // Number of rows in a block
+    private static final String COLUMN_NAME_ROWS = "rows";
+    // Encoded rows of a block
+    private static final String COLUMN_NAME_DATA = "data";
+
+    private static final String SQL_CREATE_ARCHIVE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    HistoryContract._ID + " INTEGER PRIMARY KEY," +
+                    COLUMN_NAME_FIRST_ID + " INTEGER NOT NULL," +
+                    COLUMN_NAME_LAST_ID + " INTEGER NOT NULL," +
+                    COLUMN_NAME_FIRST_TIME + " LONG NOT NULL," +
+                    COLUMN_NAME_LAST_TIME + " LONG NOT NULL," +
+                    COLUMN_NAME_ROWS + " INTEGER NOT NULL," +
+                    COLUMN_NAME_DATA + " BLOB NOT NULL" +
+                    " )";
+
+    // Maximum number of rows in one block, and so moved by one transaction
+    static final int BLOCK_ROWS = 512;
+
+    // Columns of the rows read back from the archive, and the default projection
+    static final String[] COLUMNS = {
+            HistoryContract._ID,
+            HistoryContract.COLUMN_NAME_CNT,
+            HistoryContract.COLUMN_NAME_CHANGE,
+            HistoryContract.COLUMN_NAME_TIME
+    };
+
+    private HistoryArchive() {
+    }
+
+    /**
+     * Creates the archive table.
+     *
+     * @param db The database, inside the upgrade transaction
+     */
+    static void create(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_ARCHIVE);
+    }
+
+    /**
+     * Moves the oldest history rows with a time before the cutoff into the archive, one block
+     * per transaction. Stops at the first row that is too recent or not yet checkpointed.
+     *
+     * @param db     The open database
+     * @param cutoff Rows older than this time, in milliseconds since the epoch, are archived
+     * @return the number of rows archived
+     */
+    static int archive(SQLiteDatabase db, long cutoff) {
+        int archived = 0;
+        while (true) {
+            int rows;
+            db.beginTransaction();
+            try {
+                rows = archiveBlock(db, cutoff, HistoryCheckpoints.newestHistoryId(db));
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            archived += rows;
+            if (rows < BLOCK_ROWS) {
+                break;
+            }
+        }
+        if (archived > 0) {
+            Log.i(LOG_TAG, "Archived " + archived + " rows older than " + cutoff);
+        }
+        return archived;
+    }
+
+    private static int archiveBlock(SQLiteDatabase db, long cutoff, long checkpointId) {
+        Cursor cursor = db.rawQuery("SELECT " + HistoryContract._ID + "," +
+                HistoryContract.COLUMN_NAME_CNT + "," +
+                HistoryContract.COLUMN_NAME_CHANGE + "," +
+                HistoryContract.COLUMN_NAME_TIME +
+                " FROM " + HistoryContract.TABLE_NAME +
+                " WHERE " + HistoryContract._ID + " <= ?" +
+                " ORDER BY " + HistoryContract._ID + " LIMIT " + BLOCK_ROWS,
+                new String[]{String.valueOf(checkpointId)});
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BLOCK_ROWS * 8);
+        int rows = 0;
+        long firstId = 0;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        long prevId = 0;
+        long prevTime = 0;
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                long time = cursor.getLong(3);
+                if (time >= cutoff) {
+                    break;
+                }
+                if (rows == 0) {
+                    firstId = id;
+                }
+                // Times usually grow with _IDs, but imported rows and clock changes can break that
+                minTime = Math.min(minTime, time);
+                maxTime = Math.max(maxTime, time);
+                writeRow(out, id - prevId, time - prevTime, cursor.getLong(1), cursor.getLong(2));
+                prevId = id;
+                prevTime = time;
+                rows++;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("ByteArrayOutputStream does not throw", e);
+        } finally {
+            cursor.close();
+        }
+        if (rows == 0) {
+            return 0;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME_FIRST_ID, firstId);
+        values.put(COLUMN_NAME_LAST_ID, prevId);
+        values.put(COLUMN_NAME_FIRST_TIME, minTime);
+        values.put(COLUMN_NAME_LAST_TIME, maxTime);
+        values.put(COLUMN_NAME_ROWS, rows);
+        values.put(COLUMN_NAME_DATA, out.toByteArray());
+        db.insertOrThrow(TABLE_NAME, null, values);
+
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + HistoryContract.TABLE_NAME +
+                " WHERE " + HistoryContract._ID + " BETWEEN ? AND ?");
+        try {
+            delete.bindLong(1, firstId);
+            delete.bindLong(2, prevId);
+            delete.executeUpdateDelete();
+        } finally {
+            delete.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the highest _ID in the archive, or 0 if it is empty. The archive holds a prefix of
+     * the history, so every row up to this _ID has been archived or deleted.
+     *
+     * @param db The database to read
+     */
+    static long newestArchivedId(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT max(" + COLUMN_NAME_LAST_ID + ") FROM " + TABLE_NAME,
+                null);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns whether the archive table exists. It is created at
+     * {@link HistoryMigrations#VERSION_ARCHIVE}, after the migrations that may read it.
+     *
+     * @param db The database to read
+     */
+    static boolean exists(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master" +
+                " WHERE type = 'table' AND name = ?", new String[]{TABLE_NAME}) > 0;
+    }
+
+    /**
+     * Returns the newest archived block whose first row is at or below an _ID.
+     *
+     * @param db The database to read
+     * @param id The highest _ID the block may start at
+     * @return a cursor over at most one block, with its row count then its data
+     */
+    static Cursor queryBlockAtOrBefore(SQLiteDatabase db, long id) {
+        return db.query(TABLE_NAME,
+                new String[]{COLUMN_NAME_ROWS, COLUMN_NAME_DATA},
+                COLUMN_NAME_FIRST_ID + " <= ?", new String[]{String.valueOf(id)},
+                null, null, COLUMN_NAME_FIRST_ID + " DESC", "1");
+    }
+
+    /**
+     * Returns the archived block following a row, oldest first. Its first rows may come before
+     * that row, if the block was archived after the row was read.
+     *
+     * @param db    The database to read
+     * @param after The _ID of the last row already read
+     * @return a cursor over at most one block, with its row count then its data
+     */
+    static Cursor queryBlockAfter(SQLiteDatabase db, long after) {
+        return db.query(TABLE_NAME,
+                new String[]{COLUMN_NAME_ROWS, COLUMN_NAME_DATA},
+                COLUMN_NAME_LAST_ID + " > ?", new String[]{String.valueOf(after)},
+                null, null, COLUMN_NAME_FIRST_ID, "1");
+    }
+
+    /**
+     * Reads archived rows, newest first.
+     *
+     * @param db     The database to read
+     * @param before Only rows with an _ID below this one are returned
+     * @param after  Only rows with an _ID above this one are returned
+     * @param since  Only rows with a time at or after this one are returned
+     * @param until  Only rows with a time before this one are returned
+     * @param limit  The maximum number of rows to return
+     * @param cursor The cursor the rows are added to
+     * @return the number of rows added
+     */
+    static int query(SQLiteDatabase db, long before, long after, long since, long until,
+                     int limit, HistoryArrayCursor cursor) {
+        // Blocks are skipped by their time bounds, so only blocks overlapping the range are decoded
+        Cursor blocks = db.query(TABLE_NAME,
+                new String[]{COLUMN_NAME_ROWS, COLUMN_NAME_DATA},
+                COLUMN_NAME_FIRST_ID + " < ? AND " + COLUMN_NAME_LAST_ID + " > ? AND " +
+                        COLUMN_NAME_LAST_TIME + " >= ? AND " + COLUMN_NAME_FIRST_TIME + " < ?",
+                new String[]{String.valueOf(before), String.valueOf(after),
+                        String.valueOf(since), String.valueOf(until)},
+                null, null, COLUMN_NAME_FIRST_ID + " DESC");
+
+        int added = 0;
+        try {
+            while (added < limit && blocks.moveToNext()) {
+                int rows = blocks.getInt(0);
+                long[] ids = new long[rows];
+                long[] counts = new long[rows];
+                long[] changes = new long[rows];
+                long[] times = new long[rows];
+                decode(blocks.getBlob(1), ids, counts, changes, times, rows);
+
+                for (int i = rows - 1; i >= 0 && added < limit; i--) {
+                    if (ids[i] < before && ids[i] > after
+                            && times[i] >= since && times[i] < until) {
+                        cursor.addRow(ids[i], (int) counts[i], (int) changes[i], times[i]);
+                        added++;
+                    }
+                }
+            }
+        } finally {
+            blocks.close();
+        }
+        return added;
+    }
+
+    /**
+     * Decodes the rows of a block into parallel arrays, oldest first.
+     *
+     * @param rows The number of rows in the block; the arrays must be at least as long
+     */
+    static void decode(byte[] data, long[] ids, long[] counts, long[] changes, long[] times,
+                       int rows) {
+        int[] pos = {0};
+        long id = 0;
+        long time = 0;
+        for (int i = 0; i < rows; i++) {
+            id += readVarint(data, pos);
+            time += unzigzag(readVarint(data, pos));
+            ids[i] = id;
+            times[i] = time;
+            counts[i] = unzigzag(readVarint(data, pos));
+            changes[i] = unzigzag(readVarint(data, pos));
+        }
+    }
+
+    /**
+     * Writes one row in the encoding of a block.
+     *
+     * @param out       The stream to write to
+     * @param idDelta   The _ID of the row minus that of the previous row, or the _ID itself for
+     *                  the first row
+     * @param timeDelta The time of the row minus that of the previous row, or the time itself
+     *                  for the first row
+     * @param count     The count of the row
+     * @param change    The change of the row
+     */
+    static void writeRow(OutputStream out, long idDelta, long timeDelta, long count, long change)
+            throws IOException {
+        writeVarint(out, idDelta);
+        writeVarint(out, zigzag(timeDelta));
+        writeVarint(out, zigzag(count));
+        writeVarint(out, zigzag(change));
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = data[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package me.freewine.winnie;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import me.freewine.winnie.core.HistoryRows;
+
+/**
+ * Read-only cursor over history rows held in parallel primitive arrays, 24 bytes per row, see
+ * {@link HistoryRows}.
+ * <p/>
+ * {@link HistoryProvider} fills one in a single pass for page queries. Within the process,
+ * {@link HistorySnapshot#fromCursor} takes over its arrays instead of copying the rows, and every
+ * typed read is a plain array access. Across processes it is copied into a CursorWindow like any
+ * other cursor.
+ */
+final class HistoryArrayCursor extends AbstractCursor {
+    // Arrays a column can be backed by
+    private static final int SOURCE_ID = 0;
+    private static final int SOURCE_COUNT = 1;
+    private static final int SOURCE_CHANGE = 2;
+    private static final int SOURCE_TIME = 3;
+
+    private final String[] mColumns;
+    // For each column, the array backing it
+    private final int[] mSources;
+
+    private final HistoryRows mRows;
+
+    /**
+     * @param projection The columns of the cursor, each one of those of the history table
+     * @param capacity   The number of rows expected
+     * @throws IllegalArgumentException if a column is not one of the history table
+     */
+    HistoryArrayCursor(String[] projection, int capacity) {
+        mColumns = projection;
+        mSources = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            mSources[i] = sourceOf(projection[i]);
+            if (mSources[i] < 0) {
+                throw new IllegalArgumentException("Unknown history column " + projection[i]);
+            }
+        }
+
+        mRows = new HistoryRows(capacity);
+    }
+
+    private HistoryArrayCursor(HistoryArrayCursor cursor) {
+        mColumns = cursor.mColumns;
+        mSources = cursor.mSources;
+        mRows = cursor.mRows;
+    }
+
+    /**
+     * Returns whether every column of a projection can be served by this cursor.
+     *
+     * @param projection The columns, or null for all of them
+     */
+    static boolean supports(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (sourceOf(column) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int sourceOf(String column) {
+        if (HistoryContract._ID.equals(column)) {
+            return SOURCE_ID;
+        } else if (HistoryContract.COLUMN_NAME_CNT.equals(column)) {
+            return SOURCE_COUNT;
+        } else if (HistoryContract.COLUMN_NAME_CHANGE.equals(column)) {
+            return SOURCE_CHANGE;
+        } else if (HistoryContract.COLUMN_NAME_TIME.equals(column)) {
+            return SOURCE_TIME;
+        }
+        return -1;
+    }
+
+    /**
+     * Appends a row.
+     */
+    void addRow(long id, int count, int change, long time) {
+        mRows.add(id, count, change, time);
+    }
+
+    /**
+     * Appends every row of a cursor holding the four history columns.
+     *
+     * @param source The rows to append; left open
+     */
+    void addRows(Cursor source) {
+        int idIndex = source.getColumnIndexOrThrow(HistoryContract._ID);
+        int countIndex = source.getColumnIndexOrThrow(HistoryContract.COLUMN_NAME_CNT);
+        int changeIndex = source.getColumnIndexOrThrow(HistoryContract.COLUMN_NAME_CHANGE);
+        int timeIndex = source.getColumnIndexOrThrow(HistoryContract.COLUMN_NAME_TIME);
+        while (source.moveToNext()) {
+            addRow(source.getLong(idIndex), source.getInt(countIndex),
+                    source.getInt(changeIndex), source.getLong(timeIndex));
+        }
+    }
+
+    /**
+     * Returns a new cursor over the same rows and arrays, with its own position. Only valid once
+     * no more rows are added to this cursor.
+     */
+    HistoryArrayCursor share() {
+        return new HistoryArrayCursor(this);
+    }
+
+    // Backing arrays, taken over by HistorySnapshot; valid up to getCount()
+    long[] ids() {
+        return mRows.ids();
+    }
+
+    long[] times() {
+        return mRows.times();
+    }
+
+    int[] counts() {
+        return mRows.counts();
+    }
+
+    int[] changes() {
+        return mRows.changes();
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumns;
+    }
+
+    @Override
+    public long getLong(int column) {
+        checkPosition();
+        switch (mSources[column]) {
+            case SOURCE_ID:
+                return mRows.getId(mPos);
+            case SOURCE_COUNT:
+                return mRows.getCount(mPos);
+            case SOURCE_CHANGE:
+                return mRows.getChange(mPos);
+            default:
+                return mRows.getTime(mPos);
+        }
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        return Long.toString(getLong(column));
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return false;
+    }
+
+    @Override
+    public int getType(int column) {
+        return FIELD_TYPE_INTEGER;
+    }
+}
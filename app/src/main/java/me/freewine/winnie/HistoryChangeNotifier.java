@@ -0,0 +1,123 @@
+package me.freewine.winnie;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the change notifications of {@link HistoryProvider} into at most one per window.
+ * <p/>
+ * The first change after a quiet period starts a window; changes made until it ends are merged
+ * and sent as a single notification when it does. If the window only saw rows being appended,
+ * the notification carries the row URI of the last one, with the _ID of the first one in
+ * {@link HistoryContract#QUERY_PARAMETER_FIRST}, so observers can fetch just those rows.
+ * Otherwise it carries the table URI, meaning anything may have changed.
+ */
+final class HistoryChangeNotifier {
+    private final ContentResolver mResolver;
+    private final long mWindowMs;
+    private final ScheduledExecutorService mExecutor;
+
+    // Changes of the current window, guarded by this
+    private long mFirstId = -1;
+    private long mLastId = -1;
+    private boolean mTableChanged;
+    private boolean mScheduled;
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * @param resolver The resolver to notify
+     * @param windowMs How long changes are collected before notifying, or 0 to notify each
+     *                 change right away
+     */
+    HistoryChangeNotifier(ContentResolver resolver, long windowMs) {
+        mResolver = resolver;
+        mWindowMs = windowMs;
+        mExecutor = windowMs > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+    }
+
+    /**
+     * Records rows appended to the history table.
+     *
+     * @param firstId The _ID of the first row appended
+     * @param lastId  The _ID of the last row appended
+     */
+    void rowsAppended(long firstId, long lastId) {
+        synchronized (this) {
+            if (mFirstId == -1) {
+                mFirstId = firstId;
+            }
+            mLastId = lastId;
+        }
+        schedule();
+    }
+
+    /**
+     * Records a change other than an append, such as an update or a delete.
+     */
+    void tableChanged() {
+        synchronized (this) {
+            mTableChanged = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Stops the thread that ends the windows and sends the pending notification, if any. Later
+     * changes are notified right away.
+     */
+    void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+        dispatch();
+    }
+
+    private void schedule() {
+        if (mExecutor == null || mExecutor.isShutdown()) {
+            dispatch();
+            return;
+        }
+        synchronized (this) {
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        try {
+            mExecutor.schedule(mDispatch, mWindowMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down meanwhile
+            dispatch();
+        }
+    }
+
+    private void dispatch() {
+        Uri uri;
+        synchronized (this) {
+            mScheduled = false;
+            if (mTableChanged) {
+                uri = HistoryContract.HISTORY_TABLE_CONTENTURI;
+            } else if (mFirstId == -1) {
+                // Already sent along with an earlier change
+                return;
+            } else {
+                uri = HistoryContract.buildChangeUri(mFirstId, mLastId);
+            }
+            mFirstId = -1;
+            mLastId = -1;
+            mTableChanged = false;
+        }
+        mResolver.notifyChange(uri, null);
+    }
+}
@@ -0,0 +1,163 @@
+package me.freewine.winnie;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import me.freewine.winnie.core.CounterEngine;
+import me.freewine.winnie.core.HistorySchema;
+
+/**
+ * Derives the current count from the history log, which is its only source of truth.
+ * <p/>
+ * Each history row is an event: a change applied to the count, which is clamped at zero. Every
+ * {@link #INTERVAL} events, the count reached so far is recorded in the checkpoints table,
+ * defined in {@link HistorySchema}, along with the _ID of the last event it includes. Recovery
+ * loads the newest checkpoint and replays the events after it, a primary key range of at most
+ * {@link #INTERVAL} rows, so it costs the same whatever the size of the history.
+ * <p/>
+ * The recovered count is kept in memory and advanced by {@link #append}. Callers must hold the
+ * lock of this object for as long as the transaction that appends the events.
+ */
+final class HistoryCheckpoints {
+    // Identifies log statements issued by this component
+    private static final String LOG_TAG = "HistoryCheckpoints";
+
+    // Maximum number of events between two checkpoints, and so replayed by a recovery
+    static final int INTERVAL = HistorySchema.CHECKPOINT_INTERVAL;
+
+    // Count after the event mLastId, valid once mRecovered is set
+    private boolean mRecovered;
+    private int mCount;
+    private long mLastId;
+
+    // _ID of the last event included in the newest checkpoint
+    private long mCheckpointId;
+
+    /**
+     * Creates the checkpoints table and checkpoints the newest history row, whose count was
+     * the source of truth until then. Reads one row, so it is safe to run while upgrading.
+     *
+     * @param db The database, inside the upgrade transaction
+     */
+    static void create(SQLiteDatabase db) {
+        db.execSQL(HistorySchema.SQL_CREATE_CHECKPOINTS);
+
+        Cursor cursor = db.rawQuery("SELECT " + HistoryContract._ID + "," +
+                HistoryContract.COLUMN_NAME_CNT + " FROM " + HistoryContract.TABLE_NAME +
+                " ORDER BY " + HistoryContract._ID + " DESC LIMIT 1", null);
+        try {
+            if (cursor.moveToFirst()) {
+                insertCheckpoint(db, cursor.getLong(0), cursor.getInt(1));
+            } else {
+                insertCheckpoint(db, 0, HistoryContract.INITIAL_COUNT);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the _ID of the last history row included in the newest checkpoint, or 0 if there
+     * is none. Rows up to it are never needed to recover the count.
+     *
+     * @param db The open database
+     */
+    static long newestHistoryId(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery(HistorySchema.SQL_NEWEST_CHECKPOINT, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the current count, recovering it from the newest checkpoint if needed.
+     *
+     * @param db The open database
+     */
+    synchronized int getCount(SQLiteDatabase db) {
+        if (!mRecovered) {
+            recover(db);
+        }
+        return mCount;
+    }
+
+    /**
+     * Advances the count past an event that has just been appended, and writes a checkpoint
+     * when one is due.
+     *
+     * @param db     The database, inside the transaction that appended the event
+     * @param id     The _ID of the event
+     * @param change The change of the event
+     * @return the count after the event
+     */
+    synchronized int append(SQLiteDatabase db, long id, int change) {
+        if (!mRecovered) {
+            recover(db);
+        }
+        mCount = CounterEngine.apply(mCount, change);
+        mLastId = id;
+        if (mLastId - mCheckpointId >= INTERVAL) {
+            checkpoint(db);
+        }
+        return mCount;
+    }
+
+    /**
+     * Discards the count held in memory, after a rolled back transaction or a change to the
+     * history made outside of {@link #append}. The next read recovers it again.
+     */
+    synchronized void invalidate() {
+        mRecovered = false;
+    }
+
+    /**
+     * Loads the newest checkpoint and replays the events after it.
+     */
+    private void recover(SQLiteDatabase db) {
+        Cursor checkpoint = db.rawQuery(HistorySchema.SQL_NEWEST_CHECKPOINT, null);
+        try {
+            if (checkpoint.moveToFirst()) {
+                mCheckpointId = checkpoint.getLong(0);
+                mCount = checkpoint.getInt(1);
+            } else {
+                mCheckpointId = 0;
+                mCount = HistoryContract.INITIAL_COUNT;
+            }
+        } finally {
+            checkpoint.close();
+        }
+        mLastId = mCheckpointId;
+
+        Cursor events = db.rawQuery(HistorySchema.SQL_EVENTS_AFTER,
+                new String[]{String.valueOf(mCheckpointId)});
+        int replayed = 0;
+        try {
+            while (events.moveToNext()) {
+                mLastId = events.getLong(0);
+                mCount = CounterEngine.apply(mCount, events.getInt(1));
+                replayed++;
+            }
+        } finally {
+            events.close();
+        }
+        mRecovered = true;
+        Log.i(LOG_TAG, "Recovered count " + mCount + " replaying " + replayed + " events");
+
+        // Rows inserted without going through append() can leave a long tail; shortens it
+        if (replayed >= INTERVAL) {
+            checkpoint(db);
+        }
+    }
+
+    private void checkpoint(SQLiteDatabase db) {
+        insertCheckpoint(db, mLastId, mCount);
+        mCheckpointId = mLastId;
+    }
+
+    private static void insertCheckpoint(SQLiteDatabase db, long historyId, int count) {
+        db.execSQL(HistorySchema.SQL_INSERT_CHECKPOINT,
+                new Object[]{historyId, count, System.currentTimeMillis()});
+    }
+}
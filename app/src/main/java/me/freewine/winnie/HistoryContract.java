@@ -2,6 +2,8 @@ package me.freewine.winnie;
 
 import android.net.Uri;
 import android.provider.BaseColumns;
+import me.freewine.winnie.core.CounterEngine;
+import me.freewine.winnie.core.HistorySchema;
 
 /**
  * Created by wuwantao on 14-11-16.
@@ -11,16 +13,140 @@ public final class HistoryContract implements BaseColumns{
     // give it an empty constructor.
     public HistoryContract() {}
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 5;
     public static final String DATABASE_NAME = "History.db";
 
-    public static final String TABLE_NAME = "history";
-    public static final String COLUMN_NAME_TIME = "time";
-    public static final String COLUMN_NAME_CNT = "count";
-    public static final String COLUMN_NAME_CHANGE = "change";
+    // Tables and columns of the schema in HistorySchema. Append-only: the provider rejects
+    // updates, deletes and inserts of an existing _ID
+    public static final String TABLE_NAME = HistorySchema.TABLE_NAME;
+    public static final String COLUMN_NAME_TIME = HistorySchema.COLUMN_NAME_TIME;
+    public static final String COLUMN_NAME_CNT = HistorySchema.COLUMN_NAME_CNT;
+    public static final String COLUMN_NAME_CHANGE = HistorySchema.COLUMN_NAME_CHANGE;
+
+    // Index on COLUMN_NAME_TIME, added in database version 2
+    public static final String INDEX_NAME_TIME = HistorySchema.INDEX_NAME_TIME;
+
+    // Rollups of the history table per local day and hour, added in database version 3
+    public static final String DAILY_TABLE_NAME = HistorySchema.DAILY_TABLE_NAME;
+    public static final String HOURLY_TABLE_NAME = HistorySchema.HOURLY_TABLE_NAME;
+
+    // Local day (yyyy-MM-dd) or hour (yyyy-MM-dd HH) of a rollup row
+    public static final String COLUMN_NAME_PERIOD = HistorySchema.COLUMN_NAME_PERIOD;
+    // Number of taps in the period
+    public static final String COLUMN_NAME_TAPS = HistorySchema.COLUMN_NAME_TAPS;
+    // Sum of the changes of the period
+    public static final String COLUMN_NAME_TOTAL_CHANGE = HistorySchema.COLUMN_NAME_TOTAL_CHANGE;
+    // Sum of the positive changes of the period
+    public static final String COLUMN_NAME_INCREASE = HistorySchema.COLUMN_NAME_INCREASE;
+    // Sum of the negative changes of the period
+    public static final String COLUMN_NAME_DECREASE = HistorySchema.COLUMN_NAME_DECREASE;
+
+    // Path of the keyset-paginated view of the history table
+    public static final String PATH_PAGE = "page";
+
+    // Path of the keyset-paginated view of the history table and its archive, see HISTORY_ALL_CONTENTURI
+    public static final String PATH_ALL = "all";
+
+    // Path of the streamed export of the whole history, see HISTORY_EXPORT_CONTENTURI
+    public static final String PATH_EXPORT = "export";
+
+    // Format of an export, FORMAT_CSV (the default) or FORMAT_BINARY
+    public static final String QUERY_PARAMETER_FORMAT = "format";
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_BINARY = "binary";
+
+    // Only rows with an _ID strictly below this value are returned by a page query
+    public static final String QUERY_PARAMETER_BEFORE = "before";
+
+    // Only rows with an _ID strictly above this value are returned by a page query
+    public static final String QUERY_PARAMETER_AFTER = "after";
+
+    // Only rows with a time at or after this value, in milliseconds, are returned by a page query
+    public static final String QUERY_PARAMETER_SINCE = "since";
+
+    // Only rows with a time strictly before this value, in milliseconds, are returned by a page
+    // query
+    public static final String QUERY_PARAMETER_UNTIL = "until";
+
+    // Maximum number of rows returned by a page query, from 1 to MAX_PAGE_SIZE; larger values
+    // are lowered to MAX_PAGE_SIZE
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    // On a change notification for a row URI, the _ID of the first of the rows appended with it
+    public static final String QUERY_PARAMETER_FIRST = "first";
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    // Most rows a page query returns, whatever its limit, as a page is held in memory at once
+    public static final int MAX_PAGE_SIZE = 5000;
 
     public static final String AUTHORITY = "me.freewine.winnie";
 
+    // Path notified with the progress of an import, see HISTORY_IMPORT_CONTENTURI
+    public static final String PATH_IMPORT = "import";
+
+    // On an import progress notification, the number of rows read and imported so far
+    public static final String QUERY_PARAMETER_ROWS_READ = "read";
+    public static final String QUERY_PARAMETER_ROWS_IMPORTED = "imported";
+
+    // MIME types of the export formats
+    public static final String EXPORT_MIME_TYPE_CSV = "text/csv";
+    public static final String EXPORT_MIME_TYPE_BINARY = "application/vnd." + AUTHORITY + ".history";
+
+    // Count before the first history row
+    public static final int INITIAL_COUNT = CounterEngine.INITIAL_COUNT;
+
+    /*
+     * Provider methods, see ContentResolver.call(). Both return the resulting count in EXTRA_COUNT.
+     * The count is derived from the history rows; there is no other copy of it.
+     *
+     * METHOD_INCREMENT adds EXTRA_DELTA, or each of EXTRA_DELTAS in turn, to the count, clamping
+     * it at zero, and appends one history row per delta in a single transaction. EXTRA_TIMES can
+     * give the time of each delta; it defaults to now. A single delta can also be passed as the
+     * String argument.
+     */
+    public static final String METHOD_INCREMENT = "increment";
+    public static final String METHOD_GET_COUNT = "getCount";
+
+    /*
+     * Imports a history stream in one of the export formats. The String argument is the URI to
+     * read the stream from and EXTRA_FORMAT its format, FORMAT_CSV by default. Returns the number
+     * of rows imported in EXTRA_ROWS; rows that already exist are skipped. Progress is notified
+     * on URIs built by buildImportProgressUri().
+     */
+    public static final String METHOD_IMPORT = "import";
+
+    /*
+     * Returns the latency histograms of the provider operations since the process started.
+     * EXTRA_OPERATIONS holds the operation names (open, query, insert, bulkInsert and increment),
+     * and the Bundle stored under each name the METRIC_ values of that operation.
+     * Latencies are in microseconds; percentiles are the upper bound of their bucket, whose width
+     * is at most 12.5% of its lower bound.
+     */
+    public static final String METHOD_METRICS = "metrics";
+
+    public static final String EXTRA_OPERATIONS = "operations";
+
+    // Number of operations, and of rows they read or wrote
+    public static final String METRIC_CALLS = "calls";
+    public static final String METRIC_ROWS = "rows";
+    // Sum and maximum of the latencies
+    public static final String METRIC_TOTAL_US = "total_us";
+    public static final String METRIC_MAX_US = "max_us";
+    public static final String METRIC_P50_US = "p50_us";
+    public static final String METRIC_P90_US = "p90_us";
+    public static final String METRIC_P99_US = "p99_us";
+    // Parallel long arrays: the lowest latency of each non-empty bucket, and its number of calls
+    public static final String METRIC_BUCKET_LOWEST_US = "bucket_lowest_us";
+    public static final String METRIC_BUCKET_COUNTS = "bucket_counts";
+
+    public static final String EXTRA_DELTA = "delta";
+    public static final String EXTRA_DELTAS = "deltas";
+    public static final String EXTRA_TIMES = "times";
+    public static final String EXTRA_COUNT = "count";
+    public static final String EXTRA_FORMAT = "format";
+    public static final String EXTRA_ROWS = "rows";
+
 
     // The URI scheme used for content URIs
     public static final String SCHEME = "content";
@@ -35,4 +161,159 @@ public final class HistoryContract implements BaseColumns{
      */
     public static final Uri HISTORY_TABLE_CONTENTURI =
             Uri.withAppendedPath(CONTENT_URI, TABLE_NAME);
+
+    /**
+     * Daily rollup content URI, one row per local day
+     */
+    public static final Uri HISTORY_DAILY_CONTENTURI =
+            Uri.withAppendedPath(CONTENT_URI, DAILY_TABLE_NAME);
+
+    /**
+     * Hourly rollup content URI, one row per local hour
+     */
+    public static final Uri HISTORY_HOURLY_CONTENTURI =
+            Uri.withAppendedPath(CONTENT_URI, HOURLY_TABLE_NAME);
+
+    /**
+     * History page content URI, newest rows first
+     */
+    public static final Uri HISTORY_PAGE_CONTENTURI =
+            Uri.withAppendedPath(HISTORY_TABLE_CONTENTURI, PATH_PAGE);
+
+    /**
+     * History page content URI reading through to rows moved to the archive after the retention
+     * period, newest first. Takes the same query parameters as HISTORY_PAGE_CONTENTURI; rows
+     * can only be selected with them.
+     */
+    public static final Uri HISTORY_ALL_CONTENTURI =
+            Uri.withAppendedPath(HISTORY_TABLE_CONTENTURI, PATH_ALL);
+
+    /**
+     * History export content URI, opened with ContentResolver.openInputStream(). Streams every
+     * row, archived ones included, oldest first.
+     */
+    public static final Uri HISTORY_EXPORT_CONTENTURI =
+            Uri.withAppendedPath(HISTORY_TABLE_CONTENTURI, PATH_EXPORT);
+
+    /**
+     * Import progress content URI. Observers registered on it receive the URIs built by
+     * buildImportProgressUri() while METHOD_IMPORT runs.
+     */
+    public static final Uri HISTORY_IMPORT_CONTENTURI =
+            Uri.withAppendedPath(HISTORY_TABLE_CONTENTURI, PATH_IMPORT);
+
+    /**
+     * Builds the URI notified with the progress of an import.
+     *
+     * @param read     The number of rows read so far
+     * @param imported The number of rows imported so far
+     */
+    public static Uri buildImportProgressUri(long read, long imported) {
+        return HISTORY_IMPORT_CONTENTURI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_ROWS_READ, String.valueOf(read))
+                .appendQueryParameter(QUERY_PARAMETER_ROWS_IMPORTED, String.valueOf(imported))
+                .build();
+    }
+
+    /**
+     * Builds the URI of an export of the whole history.
+     *
+     * @param format {@link #FORMAT_CSV} or {@link #FORMAT_BINARY}
+     */
+    public static Uri buildExportUri(String format) {
+        return HISTORY_EXPORT_CONTENTURI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_FORMAT, format)
+                .build();
+    }
+
+    /**
+     * Builds the URI of the newest page of history rows.
+     *
+     * @param limit The maximum number of rows in the page
+     */
+    public static Uri buildPageUri(int limit) {
+        return HISTORY_PAGE_CONTENTURI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    /**
+     * Builds the URI of the page of history rows that directly follows the row with the given
+     * _ID, newest first.
+     *
+     * @param before The _ID of the last row of the previous page
+     * @param limit  The maximum number of rows in the page
+     */
+    public static Uri buildPageUri(long before, int limit) {
+        return HISTORY_PAGE_CONTENTURI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_BEFORE, String.valueOf(before))
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    /**
+     * Builds the URI of the newest page of history rows, reading through to the archive.
+     *
+     * @param limit The maximum number of rows in the page
+     */
+    public static Uri buildAllUri(int limit) {
+        return HISTORY_ALL_CONTENTURI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    /**
+     * Builds the URI of the page of history rows, archived ones included, that directly follows
+     * the row with the given _ID, newest first.
+     *
+     * @param before The _ID of the last row of the previous page
+     * @param limit  The maximum number of rows in the page
+     */
+    public static Uri buildAllUri(long before, int limit) {
+        return HISTORY_ALL_CONTENTURI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_BEFORE, String.valueOf(before))
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    /**
+     * Builds the URI of the rows added after the row with the given _ID, newest first.
+     *
+     * @param after The highest _ID already seen
+     * @param limit The maximum number of rows in the page
+     */
+    public static Uri buildTailUri(long after, int limit) {
+        return HISTORY_PAGE_CONTENTURI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_AFTER, String.valueOf(after))
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    /**
+     * Restricts a page or tail URI to the rows of a time range. The provider reads such pages
+     * through the time index, so their cost depends on the rows in the range, not on the size of
+     * the history.
+     *
+     * @param uri   A URI built by one of the page, all or tail builders
+     * @param since The start of the range, in milliseconds, inclusive
+     * @param until The end of the range, in milliseconds, exclusive
+     */
+    public static Uri withTimeRange(Uri uri, long since, long until) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_SINCE, String.valueOf(since))
+                .appendQueryParameter(QUERY_PARAMETER_UNTIL, String.valueOf(until))
+                .build();
+    }
+
+    /**
+     * Builds the URI notified when the rows with an _ID from first to last have been appended.
+     *
+     * @param first The _ID of the first row appended
+     * @param last  The _ID of the last row appended
+     */
+    public static Uri buildChangeUri(long first, long last) {
+        return Uri.withAppendedPath(HISTORY_TABLE_CONTENTURI, String.valueOf(last)).buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_FIRST, String.valueOf(first))
+                .build();
+    }
 }
@@ -0,0 +1,218 @@
+package me.freewine.winnie;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streams the whole history, archived rows included, oldest first, into the write end of a pipe.
+ * <p/>
+ * Rows are read in keyset chunks of at most {@link #CHUNK_ROWS} table rows or one archive block,
+ * each chunk starting after the last _ID written, so memory use does not depend on the size of
+ * the history and rows archived while the export runs are neither lost nor written twice.
+ * <p/>
+ * CSV output has a header line followed by one _id,count,change,time line per row. Binary output
+ * starts with {@link #BINARY_MAGIC} followed by the rows in the encoding of an archive block, see
+ * {@link HistoryArchive}, with deltas running across the whole stream.
+ */
+final class HistoryExporter implements ContentProvider.PipeDataWriter<Void> {
+    // Identifies log statements issued by this component
+    private static final String LOG_TAG = "HistoryExporter";
+
+    // Maximum number of table rows read by one query
+    private static final int CHUNK_ROWS = 500;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // First bytes of a binary export, "WHX" and the format version
+    static final byte[] BINARY_MAGIC = {'W', 'H', 'X', 1};
+
+    // First line of a CSV export
+    static final byte[] CSV_HEADER = (HistoryContract._ID + "," +
+            HistoryContract.COLUMN_NAME_CNT + "," +
+            HistoryContract.COLUMN_NAME_CHANGE + "," +
+            HistoryContract.COLUMN_NAME_TIME + "\n").getBytes(Charset.forName("US-ASCII"));
+
+    private static final String SQL_CHUNK = "SELECT " + HistoryContract._ID + "," +
+            HistoryContract.COLUMN_NAME_CNT + "," +
+            HistoryContract.COLUMN_NAME_CHANGE + "," +
+            HistoryContract.COLUMN_NAME_TIME +
+            " FROM " + HistoryContract.TABLE_NAME +
+            " WHERE " + HistoryContract._ID + " > ?" +
+            " ORDER BY " + HistoryContract._ID + " LIMIT " + CHUNK_ROWS;
+
+    private final SQLiteOpenHelper mHelper;
+
+    /**
+     * @param helper The helper of the database to export
+     */
+    HistoryExporter(SQLiteOpenHelper helper) {
+        mHelper = helper;
+    }
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                Bundle opts, Void args) {
+        OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(output.getFileDescriptor()), BUFFER_SIZE);
+        try {
+            RowWriter writer = HistoryContract.EXPORT_MIME_TYPE_BINARY.equals(mimeType)
+                    ? new BinaryRowWriter(out) : new CsvRowWriter(out);
+            int rows = export(mHelper.getReadableDatabase(), writer);
+            out.flush();
+            Log.i(LOG_TAG, "Exported " + rows + " rows as " + mimeType);
+        } catch (IOException e) {
+            // The reader went away; there is no one left to report to
+            Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close the export pipe", e);
+            }
+        }
+    }
+
+    /**
+     * Writes every row, archived ones first since their _IDs are lower.
+     *
+     * @return the number of rows written
+     */
+    private static int export(SQLiteDatabase db, RowWriter writer) throws IOException {
+        long lastId = Long.MIN_VALUE;
+        int written = 0;
+        long[] ids = new long[0];
+        long[] counts = new long[0];
+        long[] changes = new long[0];
+        long[] times = new long[0];
+
+        while (true) {
+            // Checked before each chunk, as rows may be archived while the export runs
+            Cursor block = HistoryArchive.queryBlockAfter(db, lastId);
+            try {
+                if (block.moveToFirst()) {
+                    int rows = block.getInt(0);
+                    if (ids.length < rows) {
+                        ids = new long[rows];
+                        counts = new long[rows];
+                        changes = new long[rows];
+                        times = new long[rows];
+                    }
+                    HistoryArchive.decode(block.getBlob(1), ids, counts, changes, times, rows);
+                    for (int i = 0; i < rows; i++) {
+                        if (ids[i] > lastId) {
+                            writer.write(ids[i], counts[i], changes[i], times[i]);
+                            lastId = ids[i];
+                            written++;
+                        }
+                    }
+                    continue;
+                }
+            } finally {
+                block.close();
+            }
+
+            Cursor chunk = db.rawQuery(SQL_CHUNK, new String[]{String.valueOf(lastId)});
+            int rows = 0;
+            try {
+                while (chunk.moveToNext()) {
+                    lastId = chunk.getLong(0);
+                    writer.write(lastId, chunk.getLong(1), chunk.getLong(2), chunk.getLong(3));
+                    rows++;
+                }
+            } finally {
+                chunk.close();
+            }
+            written += rows;
+            if (rows < CHUNK_ROWS) {
+                return written;
+            }
+        }
+    }
+
+    /**
+     * Writes rows, in _ID order, in one of the export formats.
+     */
+    private interface RowWriter {
+        void write(long id, long count, long change, long time) throws IOException;
+    }
+
+    private static final class CsvRowWriter implements RowWriter {
+        private final OutputStream mOut;
+        // Large enough for four longs, their separators and the line end
+        private final byte[] mLine = new byte[4 * 20 + 4];
+
+        CsvRowWriter(OutputStream out) throws IOException {
+            mOut = out;
+            mOut.write(CSV_HEADER);
+        }
+
+        @Override
+        public void write(long id, long count, long change, long time) throws IOException {
+            int pos = writeLong(id, 0);
+            mLine[pos++] = ',';
+            pos = writeLong(count, pos);
+            mLine[pos++] = ',';
+            pos = writeLong(change, pos);
+            mLine[pos++] = ',';
+            pos = writeLong(time, pos);
+            mLine[pos++] = '\n';
+            mOut.write(mLine, 0, pos);
+        }
+
+        /**
+         * Writes a long in decimal without going through a String.
+         *
+         * @return the position after the last digit
+         */
+        private int writeLong(long value, int pos) {
+            if (value == Long.MIN_VALUE) {
+                byte[] min = Long.toString(value).getBytes(Charset.forName("US-ASCII"));
+                System.arraycopy(min, 0, mLine, pos, min.length);
+                return pos + min.length;
+            }
+            if (value < 0) {
+                mLine[pos++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                mLine[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            return pos + digits;
+        }
+    }
+
+    private static final class BinaryRowWriter implements RowWriter {
+        private final OutputStream mOut;
+        private long mPrevId;
+        private long mPrevTime;
+
+        BinaryRowWriter(OutputStream out) throws IOException {
+            mOut = out;
+            mOut.write(BINARY_MAGIC);
+        }
+
+        @Override
+        public void write(long id, long count, long change, long time) throws IOException {
+            HistoryArchive.writeRow(mOut, id - mPrevId, time - mPrevTime, count, change);
+            mPrevId = id;
+            mPrevTime = time;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package me.freewine.winnie;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import me.freewine.winnie.core.HistorySchema;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a history stream in either export format and writes it into the history table.
+ * <p/>
+ * The stream is read in chunks of {@link #BATCH_ROWS} rows. Each chunk is parsed and validated
+ * in full before any of it is written, then written through one compiled statement in one
+ * transaction, so a malformed stream leaves the chunks before the bad row imported and nothing
+ * after it. Rows keep their _IDs, and rows whose _ID already exists, in the table or in the
+ * archive, are skipped, so importing the same stream twice is harmless.
+ */
+final class HistoryImporter {
+    // Identifies log statements issued by this component
+    private static final String LOG_TAG = "HistoryImporter";
+
+    // Number of rows parsed, validated and written together
+    static final int BATCH_ROWS = 10000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receives the progress of an import after each committed chunk.
+     */
+    interface ProgressListener {
+        void onProgress(long rowsRead, long rowsImported);
+    }
+
+    private final SQLiteDatabase mDb;
+    private final HistoryCheckpoints mCheckpoints;
+
+    // Rows of the current chunk
+    private final long[] mIds = new long[BATCH_ROWS];
+    private final long[] mCounts = new long[BATCH_ROWS];
+    private final long[] mChanges = new long[BATCH_ROWS];
+    private final long[] mTimes = new long[BATCH_ROWS];
+
+    private long mRowsRead;
+    private long mRowsImported;
+
+    /**
+     * @param db          The database to import into
+     * @param checkpoints The count of the history, locked while each chunk is written to keep
+     *                    other writers out, and invalidated after it
+     */
+    HistoryImporter(SQLiteDatabase db, HistoryCheckpoints checkpoints) {
+        mDb = db;
+        mCheckpoints = checkpoints;
+    }
+
+    /**
+     * Imports a whole stream.
+     *
+     * @param in       The stream, closed by the caller
+     * @param binary   Whether the stream is in the binary format rather than CSV
+     * @param listener Told about the progress after each chunk, or null
+     * @return the number of rows imported, not counting skipped ones
+     * @throws IllegalArgumentException if the stream is malformed
+     * @throws IOException              if the stream cannot be read
+     */
+    long run(InputStream in, boolean binary, ProgressListener listener) throws IOException {
+        RowReader reader = binary ? new BinaryRowReader(in) : new CsvRowReader(in);
+        long archivedId = HistoryArchive.newestArchivedId(mDb);
+        long lastId = Long.MIN_VALUE;
+        long[] row = new long[4];
+
+        while (true) {
+            int rows = 0;
+            while (rows < BATCH_ROWS && reader.read(row)) {
+                long line = mRowsRead + rows + 1;
+                if (row[0] <= lastId) {
+                    throw new IllegalArgumentException("Import -- Row " + line + " out of order");
+                }
+                if (row[0] <= 0 || row[1] < 0 || row[3] <= 0
+                        || row[1] > Integer.MAX_VALUE || row[2] < Integer.MIN_VALUE
+                        || row[2] > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Import -- Invalid row " + line);
+                }
+                lastId = row[0];
+                mIds[rows] = row[0];
+                mCounts[rows] = row[1];
+                mChanges[rows] = row[2];
+                mTimes[rows] = row[3];
+                rows++;
+            }
+            if (rows == 0) {
+                break;
+            }
+
+            mRowsImported += write(rows, archivedId);
+            mRowsRead += rows;
+            if (listener != null) {
+                listener.onProgress(mRowsRead, mRowsImported);
+            }
+            if (rows < BATCH_ROWS) {
+                break;
+            }
+        }
+
+        Log.i(LOG_TAG, "Imported " + mRowsImported + " of " + mRowsRead + " rows");
+        return mRowsImported;
+    }
+
+    /**
+     * Writes the rows of the current chunk in one transaction.
+     *
+     * @param rows       The number of rows in the chunk
+     * @param archivedId Rows up to this _ID belong to the archive and are skipped
+     * @return the number of rows inserted
+     */
+    private int write(int rows, long archivedId) {
+        int inserted = 0;
+        synchronized (mCheckpoints) {
+            SQLiteStatement statement = mDb.compileStatement(HistorySchema.SQL_IMPORT_ENTRY);
+            mDb.beginTransaction();
+            try {
+                for (int i = 0; i < rows; i++) {
+                    if (mIds[i] <= archivedId) {
+                        continue;
+                    }
+                    statement.bindLong(1, mIds[i]);
+                    statement.bindLong(2, mCounts[i]);
+                    statement.bindLong(3, mChanges[i]);
+                    statement.bindLong(4, mTimes[i]);
+                    if (statement.executeInsert() != -1) {
+                        inserted++;
+                    }
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+                statement.close();
+                // Imported rows bypass the in-memory count, which an increment between two
+                // chunks would otherwise advance and checkpoint without them
+                mCheckpoints.invalidate();
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Reads rows one at a time from a stream in one of the export formats.
+     */
+    private interface RowReader {
+        /**
+         * Reads the next row into _ID, count, change and time.
+         *
+         * @return false at the end of the stream
+         */
+        boolean read(long[] row) throws IOException;
+    }
+
+    private static final class CsvRowReader implements RowReader {
+        private final InputStream mIn;
+        private long mLine = 1;
+
+        CsvRowReader(InputStream in) throws IOException {
+            mIn = new BufferedInputStream(in, BUFFER_SIZE);
+            for (byte b : HistoryExporter.CSV_HEADER) {
+                if (mIn.read() != b) {
+                    throw new IllegalArgumentException("Import -- Missing CSV header");
+                }
+            }
+        }
+
+        @Override
+        public boolean read(long[] row) throws IOException {
+            mLine++;
+            int c = mIn.read();
+            if (c == -1) {
+                return false;
+            }
+            for (int field = 0; field < row.length; field++) {
+                boolean negative = c == '-';
+                if (negative) {
+                    c = mIn.read();
+                }
+                if (c < '0' || c > '9') {
+                    throw new IllegalArgumentException(
+                            "Import -- Invalid number on line " + mLine);
+                }
+                long value = 0;
+                int digits = 0;
+                while (c >= '0' && c <= '9') {
+                    if (++digits > 18) {
+                        throw new IllegalArgumentException(
+                                "Import -- Number too long on line " + mLine);
+                    }
+                    value = value * 10 + (c - '0');
+                    c = mIn.read();
+                }
+                row[field] = negative ? -value : value;
+
+                int separator = field == row.length - 1 ? '\n' : ',';
+                if (c == '\r' && separator == '\n') {
+                    c = mIn.read();
+                }
+                if (c != separator && !(c == -1 && separator == '\n')) {
+                    throw new IllegalArgumentException("Import -- Invalid line " + mLine);
+                }
+                if (separator == ',') {
+                    c = mIn.read();
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class BinaryRowReader implements RowReader {
+        private final InputStream mIn;
+        private long mPrevId;
+        private long mPrevTime;
+
+        BinaryRowReader(InputStream in) throws IOException {
+            mIn = new BufferedInputStream(in, BUFFER_SIZE);
+            for (byte b : HistoryExporter.BINARY_MAGIC) {
+                if (mIn.read() != b) {
+                    throw new IllegalArgumentException("Import -- Not a binary history export");
+                }
+            }
+        }
+
+        @Override
+        public boolean read(long[] row) throws IOException {
+            int first = mIn.read();
+            if (first == -1) {
+                return false;
+            }
+            mPrevId += readVarint(first);
+            mPrevTime += HistoryArchive.unzigzag(readVarint(mIn.read()));
+            row[0] = mPrevId;
+            row[1] = HistoryArchive.unzigzag(readVarint(mIn.read()));
+            row[2] = HistoryArchive.unzigzag(readVarint(mIn.read()));
+            row[3] = mPrevTime;
+            return true;
+        }
+
+        /**
+         * Reads a varint whose first byte has already been read.
+         */
+        private long readVarint(int b) throws IOException {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                if (b == -1) {
+                    throw new IllegalArgumentException("Import -- Truncated binary history export");
+                }
+                if (shift > 63) {
+                    throw new IllegalArgumentException("Import -- Invalid varint");
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+                b = mIn.read();
+            }
+        }
+    }
+}
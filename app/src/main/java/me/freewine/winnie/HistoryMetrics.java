@@ -0,0 +1,81 @@
+package me.freewine.winnie;
+
+import android.os.Bundle;
+
+/**
+ * Latency histograms of the operations of {@link HistoryProvider}, one per operation name of
+ * {@link HistoryContract#METHOD_METRICS}.
+ */
+final class HistoryMetrics {
+    static final String OPEN = "open";
+    static final String QUERY = "query";
+    static final String INSERT = "insert";
+    static final String BULK_INSERT = "bulkInsert";
+    static final String INCREMENT = "increment";
+
+    private static final String[] OPERATIONS =
+            {OPEN, QUERY, INSERT, BULK_INSERT, INCREMENT};
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[OPERATIONS.length];
+
+    HistoryMetrics() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records one operation.
+     *
+     * @param operation  One of the operation names
+     * @param startNanos The value of System.nanoTime() when the operation started
+     * @param rows       The number of rows it read or wrote
+     */
+    void record(String operation, long startNanos, int rows) {
+        long nanos = System.nanoTime() - startNanos;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (OPERATIONS[i].equals(operation)) {
+                mHistograms[i].record(nanos, rows);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation " + operation);
+    }
+
+    /**
+     * Returns a snapshot of every histogram, see {@link HistoryContract#METHOD_METRICS}.
+     */
+    Bundle snapshot() {
+        Bundle result = new Bundle();
+        result.putStringArray(HistoryContract.EXTRA_OPERATIONS, OPERATIONS);
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            result.putBundle(OPERATIONS[i], mHistograms[i].snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Formats a snapshot returned by {@link HistoryContract#METHOD_METRICS}, one line per
+     * operation.
+     */
+    static String format(Bundle snapshot) {
+        StringBuilder text = new StringBuilder();
+        for (String operation : snapshot.getStringArray(HistoryContract.EXTRA_OPERATIONS)) {
+            Bundle metrics = snapshot.getBundle(operation);
+            long calls = metrics.getLong(HistoryContract.METRIC_CALLS);
+            text.append(operation).append(": ").append(calls).append(" calls, ")
+                    .append(metrics.getLong(HistoryContract.METRIC_ROWS)).append(" rows");
+            if (calls > 0) {
+                text.append(", mean ")
+                        .append(metrics.getLong(HistoryContract.METRIC_TOTAL_US) / calls)
+                        .append(" us, p50 ").append(metrics.getLong(HistoryContract.METRIC_P50_US))
+                        .append(" us, p90 ").append(metrics.getLong(HistoryContract.METRIC_P90_US))
+                        .append(" us, p99 ").append(metrics.getLong(HistoryContract.METRIC_P99_US))
+                        .append(" us, max ").append(metrics.getLong(HistoryContract.METRIC_MAX_US))
+                        .append(" us");
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+}
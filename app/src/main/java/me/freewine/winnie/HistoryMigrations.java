@@ -0,0 +1,294 @@
+package me.freewine.winnie;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import me.freewine.winnie.core.HistorySchema;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Versioned, non-destructive schema migrations for History.db.
+ * <p/>
+ * Each {@link Migration} has a schema step, run from SQLiteOpenHelper.onUpgrade() and kept short,
+ * and optionally a backfill: deferred work such as copying rows or building an index, which
+ * {@link #runPendingBackfills(SQLiteDatabase)} applies later on a background thread in bounded
+ * chunks, one transaction per chunk. Progress is recorded in the migrations table, so a backfill
+ * cut short by process death resumes where it stopped. Until a backfill has finished,
+ * {@link #isComplete(int)} returns false and readers keep using the structures that existed
+ * before the migration.
+ * <p/>
+ * The one exception is the time index of {@link #VERSION_TIME_INDEX}: SQLite cannot build an
+ * index a chunk at a time, so its backfill is a single CREATE INDEX that scans the whole history
+ * table in one transaction and holds the write lock until it is done. It still runs off the main
+ * thread, and readers can go on reading under WAL, but writers such as taps wait for it.
+ * <p/>
+ * Steps must be idempotent: a downgrade keeps every table, so a later upgrade runs them again.
+ */
+final class HistoryMigrations {
+    // Identifies log statements issued by this component
+    private static final String LOG_TAG = "HistoryMigrations";
+
+    // Bookkeeping table holding the progress of each pending backfill
+    private static final String TABLE_NAME = "migrations";
+    private static final String COLUMN_NAME_VERSION = "version";
+    private static final String COLUMN_NAME_PROGRESS = "progress";
+
+    private static final String SQL_CREATE_MIGRATIONS =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_NAME_VERSION + " INTEGER PRIMARY KEY," +
+                    COLUMN_NAME_PROGRESS + " INTEGER NOT NULL" +
+                    " )";
+
+    // Progress value of a finished backfill
+    static final long DONE = -1;
+
+    // Version that added the index on the time of history rows
+    static final int VERSION_TIME_INDEX = 2;
+
+    // Version that added the daily and hourly rollup tables
+    static final int VERSION_ROLLUPS = 3;
+
+    // Version that made the history log the source of the count, with checkpoints
+    static final int VERSION_CHECKPOINTS = 4;
+
+    // Version that added the archive of rows past the retention period
+    static final int VERSION_ARCHIVE = 5;
+
+    // Upper bound on the rows a backfill handles in one transaction
+    static final int CHUNK_SIZE = 1000;
+
+    /**
+     * One versioned step of the schema.
+     */
+    abstract static class Migration {
+        final int mVersion;
+
+        Migration(int version) {
+            mVersion = version;
+        }
+
+        /**
+         * Applies the schema change. Runs while the database is being opened, so it must not
+         * scan large tables.
+         *
+         * @param db The database, inside the upgrade transaction
+         */
+        abstract void upgrade(SQLiteDatabase db);
+
+        /**
+         * Returns whether this step has deferred work for {@link #backfill}.
+         */
+        boolean hasBackfill() {
+            return false;
+        }
+
+        /**
+         * Returns the progress the first backfill chunk starts from.
+         *
+         * @param db The database, inside the upgrade transaction and after {@link #upgrade}
+         */
+        long initialProgress(SQLiteDatabase db) {
+            return 0;
+        }
+
+        /**
+         * Does one bounded chunk of deferred work.
+         *
+         * @param db        The database, inside a transaction for this chunk
+         * @param progress  The value returned by the previous chunk, or by
+         *                  {@link #initialProgress} for the first one
+         * @param chunkSize Upper bound on the rows to handle
+         * @return the progress to resume from, or {@link #DONE}
+         */
+        long backfill(SQLiteDatabase db, long progress, int chunkSize) {
+            return DONE;
+        }
+    }
+
+    // Every step of the schema, in version order
+    private static final Migration[] MIGRATIONS = {
+            new Migration(1) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    db.execSQL(HistorySchema.SQL_CREATE_ENTRIES);
+                }
+            },
+            new Migration(VERSION_TIME_INDEX) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    // Nothing to change up front; the index is built in the background
+                }
+
+                @Override
+                boolean hasBackfill() {
+                    return true;
+                }
+
+                // Ignores chunkSize: an index can only be built in one statement, see the class
+                // comment
+                @Override
+                long backfill(SQLiteDatabase db, long progress, int chunkSize) {
+                    db.execSQL(HistorySchema.SQL_CREATE_TIME_INDEX);
+                    return DONE;
+                }
+            },
+            new Migration(VERSION_ROLLUPS) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    HistoryRollups.create(db);
+                }
+
+                @Override
+                boolean hasBackfill() {
+                    return true;
+                }
+
+                @Override
+                long initialProgress(SQLiteDatabase db) {
+                    return HistoryRollups.backfillStart(db);
+                }
+
+                @Override
+                long backfill(SQLiteDatabase db, long progress, int chunkSize) {
+                    return HistoryRollups.backfill(db, progress, chunkSize);
+                }
+            },
+            new Migration(VERSION_CHECKPOINTS) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    HistoryCheckpoints.create(db);
+                }
+            },
+            new Migration(VERSION_ARCHIVE) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    HistoryArchive.create(db);
+                }
+            },
+    };
+
+    // Versions whose backfill has not finished yet
+    private final Set<Integer> mPending = Collections.synchronizedSet(new HashSet<Integer>());
+
+    /**
+     * Applies the schema steps of every version in (oldVersion, newVersion] and records their
+     * backfills as pending.
+     *
+     * @param db         The database, inside the upgrade transaction
+     * @param oldVersion The version of the database, 0 for a new one
+     * @param newVersion The version to upgrade to
+     */
+    void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL(SQL_CREATE_MIGRATIONS);
+        for (Migration migration : MIGRATIONS) {
+            if (migration.mVersion <= oldVersion || migration.mVersion > newVersion) {
+                continue;
+            }
+            Log.i(LOG_TAG, "Applying migration " + migration.mVersion);
+            migration.upgrade(db);
+
+            if (migration.hasBackfill()) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_NAME_VERSION, migration.mVersion);
+                values.put(COLUMN_NAME_PROGRESS, migration.initialProgress(db));
+                db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        }
+    }
+
+    /**
+     * Forgets the backfills of versions above the one being downgraded to, so that they run
+     * again on the next upgrade. Tables and rows are kept.
+     *
+     * @param db         The database, inside the downgrade transaction
+     * @param newVersion The version being downgraded to
+     */
+    void downgrade(SQLiteDatabase db, int newVersion) {
+        db.execSQL(SQL_CREATE_MIGRATIONS);
+        db.delete(TABLE_NAME, COLUMN_NAME_VERSION + " > ?",
+                new String[]{String.valueOf(newVersion)});
+    }
+
+    /**
+     * Loads the set of pending backfills. Called every time the database is opened.
+     *
+     * @param db The open database
+     */
+    void load(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_MIGRATIONS);
+        Cursor cursor = db.query(TABLE_NAME, new String[]{COLUMN_NAME_VERSION},
+                COLUMN_NAME_PROGRESS + " != ?", new String[]{String.valueOf(DONE)},
+                null, null, null);
+        try {
+            mPending.clear();
+            while (cursor.moveToNext()) {
+                mPending.add(cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns whether the migration to a version has finished, backfill included.
+     *
+     * @param version The version of the migration
+     */
+    boolean isComplete(int version) {
+        return !mPending.contains(version);
+    }
+
+    /**
+     * Runs every pending backfill to completion, in version order, one chunk per transaction so
+     * that other writers get the database between chunks.
+     *
+     * @param db The open database
+     */
+    void runPendingBackfills(SQLiteDatabase db) {
+        for (Migration migration : MIGRATIONS) {
+            if (isComplete(migration.mVersion)) {
+                continue;
+            }
+
+            long progress = readProgress(db, migration.mVersion);
+            int chunks = 0;
+            while (progress != DONE) {
+                db.beginTransaction();
+                try {
+                    progress = migration.backfill(db, progress, CHUNK_SIZE);
+                    writeProgress(db, migration.mVersion, progress);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                chunks++;
+            }
+
+            mPending.remove(migration.mVersion);
+            Log.i(LOG_TAG, "Finished backfill of migration " + migration.mVersion
+                    + " in " + chunks + " chunks");
+        }
+    }
+
+    private static long readProgress(SQLiteDatabase db, int version) {
+        Cursor cursor = db.query(TABLE_NAME, new String[]{COLUMN_NAME_PROGRESS},
+                COLUMN_NAME_VERSION + " = ?", new String[]{String.valueOf(version)},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : DONE;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void writeProgress(SQLiteDatabase db, int version, long progress) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME_PROGRESS, progress);
+        db.update(TABLE_NAME, values, COLUMN_NAME_VERSION + " = ?",
+                new String[]{String.valueOf(version)});
+    }
+}
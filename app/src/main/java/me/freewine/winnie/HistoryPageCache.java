@@ -0,0 +1,150 @@
+package me.freewine.winnie;
+
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of the history pages served by {@link HistoryProvider}, bounded by
+ * the total number of rows held.
+ * <p/>
+ * Entries are keyed by the normalized query and tagged with the generation of the table they
+ * were read from. Every write to the history advances the generation, which makes all older
+ * entries stale at once without walking the cache; a stale entry is dropped when it is next
+ * looked up. A query reads the generation before it reads the table, so a page read while a
+ * write commits is tagged with the old generation and never outlives the write.
+ * <p/>
+ * Pages are cached as {@link HistoryArrayCursor}s, and each hit returns a new cursor over the
+ * same arrays, so repeat reads neither touch the database nor copy rows.
+ */
+final class HistoryPageCache {
+    private final LruCache<String, Entry> mEntries;
+    private final AtomicLong mGeneration = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    private static final class Entry {
+        final long mGeneration;
+        final HistoryArrayCursor mRows;
+
+        Entry(long generation, HistoryArrayCursor rows) {
+            mGeneration = generation;
+            mRows = rows;
+        }
+    }
+
+    /**
+     * @param maxRows The maximum number of rows held by all entries together; 0 disables the cache
+     */
+    HistoryPageCache(int maxRows) {
+        mEntries = maxRows > 0 ? new LruCache<String, Entry>(maxRows) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                // Counts empty pages too, so they cannot pile up
+                return entry.mRows.getCount() + 1;
+            }
+        } : null;
+    }
+
+    /**
+     * Builds the key of a query. Parameters of the page URI are taken in a fixed order, so the
+     * same page requested through differently built URIs shares one entry.
+     */
+    static String keyOf(int match, Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+        StringBuilder key = new StringBuilder(128).append(match);
+        append(key, uri.getPath());
+        append(key, uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_BEFORE));
+        append(key, uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_AFTER));
+        append(key, uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_SINCE));
+        append(key, uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_UNTIL));
+        append(key, uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_LIMIT));
+        appendAll(key, projection);
+        append(key, selection);
+        appendAll(key, selectionArgs);
+        append(key, sortOrder);
+        return key.toString();
+    }
+
+    // Length-prefixes each value, so no value can run into the next one
+    private static void append(StringBuilder key, String value) {
+        if (value == null) {
+            key.append('|');
+        } else {
+            key.append('|').append(value.length()).append(':').append(value);
+        }
+    }
+
+    private static void appendAll(StringBuilder key, String[] values) {
+        if (values == null) {
+            key.append("|-");
+            return;
+        }
+        key.append('|').append(values.length);
+        for (String value : values) {
+            append(key, value);
+        }
+    }
+
+    /**
+     * Returns the generation to pass to {@link #put}; read before querying the table.
+     */
+    long generation() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Makes every cached page stale. Called after each write to the history has committed.
+     */
+    void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns a new cursor over the cached rows of a query, or null if there are none or they
+     * are stale.
+     */
+    HistoryArrayCursor get(String key) {
+        if (mEntries != null) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                if (entry.mGeneration == mGeneration.get()) {
+                    mHits.incrementAndGet();
+                    return entry.mRows.share();
+                }
+                mEntries.remove(key);
+            }
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the rows of a query, unless the table has changed since they were read.
+     *
+     * @param key        The key of the query, see {@link #keyOf}
+     * @param generation The generation read before querying the table
+     * @param rows       The rows read; no more rows may be added to them
+     */
+    void put(String key, long generation, HistoryArrayCursor rows) {
+        if (mEntries != null && generation == mGeneration.get()) {
+            mEntries.put(key, new Entry(generation, rows.share()));
+        }
+    }
+
+    long hitCount() {
+        return mHits.get();
+    }
+
+    long missCount() {
+        return mMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryPageCache[hits=" + mHits.get() + ", misses=" + mMisses.get()
+                + ", rows=" + (mEntries != null ? mEntries.size() : 0)
+                + ", generation=" + mGeneration.get() + "]";
+    }
+}
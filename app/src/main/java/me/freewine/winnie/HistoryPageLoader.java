@@ -0,0 +1,241 @@
+package me.freewine.winnie;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+
+/**
+ * Loads the history table one keyset page at a time, newest rows first, into a
+ * {@link HistorySnapshot}.
+ * <p/>
+ * The first load fetches a single page. Each call to {@link #loadMore()} fetches the page that
+ * follows the oldest row loaded so far and appends it, so the cost of a load depends on the page
+ * size, not on the size of the table. Older pages read through to rows moved to the archive.
+ * <p/>
+ * The loader follows the tail of the table: when rows are appended it fetches only the rows above
+ * the highest _ID it has seen and puts them in front of the rows it already holds. Any other kind
+ * of change, or a tail too long to merge cheaply, fetches the rows loaded so far again in one page.
+ * Pages are copied into the snapshot and closed in the background, so the loader holds no cursors.
+ * <p/>
+ * A loader can be restricted to a time range, in which case every page it fetches is too.
+ */
+public class HistoryPageLoader extends AsyncTaskLoader<HistorySnapshot> {
+    private static final String[] PROJECTION =
+            {
+                    HistoryContract._ID,
+                    HistoryContract.COLUMN_NAME_CNT,
+                    HistoryContract.COLUMN_NAME_CHANGE,
+                    HistoryContract.COLUMN_NAME_TIME,
+            };
+
+    private final int mPageSize;
+    // Time range of the rows loaded, if mRanged
+    private final boolean mRanged;
+    private final long mSince;
+    private final long mUntil;
+    private final TailObserver mObserver = new TailObserver();
+    private boolean mObserverRegistered;
+
+    // The last snapshot delivered, read by loadInBackground()
+    private volatile HistorySnapshot mSnapshot;
+    private volatile boolean mLoadMore;
+    private volatile boolean mReloadAll;
+
+    /**
+     * @param context  The current context
+     * @param pageSize The number of rows fetched by each page
+     */
+    public HistoryPageLoader(Context context, int pageSize) {
+        super(context);
+        mPageSize = pageSize;
+        mRanged = false;
+        mSince = 0;
+        mUntil = 0;
+    }
+
+    /**
+     * @param context  The current context
+     * @param pageSize The number of rows fetched by each page
+     * @param since    The start of the time range loaded, in milliseconds, inclusive
+     * @param until    The end of the time range loaded, in milliseconds, exclusive
+     */
+    public HistoryPageLoader(Context context, int pageSize, long since, long until) {
+        super(context);
+        mPageSize = pageSize;
+        mRanged = true;
+        mSince = since;
+        mUntil = until;
+    }
+
+    /**
+     * Fetches the next page of older rows, unless one is already being fetched or every row has
+     * been loaded.
+     */
+    public void loadMore() {
+        HistorySnapshot snapshot = mSnapshot;
+        if (mLoadMore || snapshot == null || !snapshot.hasOlder()) {
+            return;
+        }
+        mLoadMore = true;
+        forceLoad();
+    }
+
+    @Override
+    public HistorySnapshot loadInBackground() {
+        HistorySnapshot current = mSnapshot;
+        if (current != null && current.size() > 0 && !mReloadAll) {
+            if (mLoadMore) {
+                long oldestId = current.getId(current.size() - 1);
+                HistorySnapshot older = fetch(
+                        HistoryContract.buildAllUri(oldestId, mPageSize), mPageSize);
+                return older == null ? null : current.concat(older);
+            }
+
+            // Fetches one row more than it merges, to tell a short tail from a long one
+            HistorySnapshot tail = fetch(
+                    HistoryContract.buildTailUri(current.getId(0), mPageSize + 1), mPageSize + 1);
+            if (tail == null) {
+                return null;
+            }
+            if (!tail.hasOlder()) {
+                return tail.concat(current);
+            }
+        }
+
+        // Cleared before the reload starts, so a change that arrives meanwhile is not lost
+        mReloadAll = false;
+        // Stays within what the provider returns, or a capped page would look like the last one
+        int limit = Math.min(Math.max(mPageSize, current == null ? 0 : current.size()),
+                HistoryContract.MAX_PAGE_SIZE);
+        return fetch(HistoryContract.buildAllUri(limit), limit);
+    }
+
+    /**
+     * Copies one page into a snapshot and closes it.
+     *
+     * @param uri   The page URI, restricted to the time range of the loader here
+     * @param limit The limit of the page URI
+     * @return the rows of the page, or null if the provider is not available
+     */
+    private HistorySnapshot fetch(Uri uri, int limit) {
+        if (mRanged) {
+            uri = HistoryContract.withTimeRange(uri, mSince, mUntil);
+        }
+        Cursor cursor = getContext().getContentResolver().query(
+                uri, PROJECTION, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            // A full page means there may be more rows beyond it
+            return HistorySnapshot.fromCursor(cursor, cursor.getCount() >= limit);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void deliverResult(HistorySnapshot snapshot) {
+        if (isReset() || snapshot == null) {
+            return;
+        }
+        mSnapshot = snapshot;
+        mLoadMore = false;
+
+        if (isStarted()) {
+            super.deliverResult(snapshot);
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        // The change is handled first; a pending page is requested again by the next scroll
+        mLoadMore = false;
+        super.onContentChanged();
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(
+                    HistoryContract.HISTORY_TABLE_CONTENTURI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mSnapshot != null) {
+            super.deliverResult(mSnapshot);
+        }
+        if (takeContentChanged() || mSnapshot == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(HistorySnapshot snapshot) {
+        // The canceled load may have been a reload; makes sure the next one is
+        mLoadMore = false;
+        mReloadAll = true;
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mSnapshot = null;
+        mLoadMore = false;
+        mReloadAll = false;
+    }
+
+    /**
+     * Reloads the loader when the history table changes. Notifications for a single row URI come
+     * from appends and are followed from the tail; anything else forces a full reload.
+     */
+    private class TailObserver extends ContentObserver {
+        TailObserver() {
+            super(new Handler());
+        }
+
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri == null || !isRowUri(uri)) {
+                mReloadAll = true;
+            }
+            onContentChanged();
+        }
+
+        private boolean isRowUri(Uri uri) {
+            String last = uri.getLastPathSegment();
+            if (last == null || last.length() == 0) {
+                return false;
+            }
+            for (int i = 0; i < last.length(); i++) {
+                if (!Character.isDigit(last.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
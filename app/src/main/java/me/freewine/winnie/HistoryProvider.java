@@ -17,16 +17,36 @@
 package me.freewine.winnie;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.util.SparseArray;
+import me.freewine.winnie.core.CounterEngine;
+import me.freewine.winnie.core.HistorySchema;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Defines a ContentProvider that stores persons and messages
@@ -36,24 +56,31 @@ public class HistoryProvider extends ContentProvider {
     // Indicates that the incoming query is for a person
     public static final int HISTORY_QUERY = 1;
 
+    // Indicates that the incoming query is for a page of history rows
+    public static final int HISTORY_PAGE_QUERY = 2;
+
+    // Indicates that the incoming query is for the daily rollup
+    public static final int HISTORY_DAILY_QUERY = 3;
+
+    // Indicates that the incoming query is for the hourly rollup
+    public static final int HISTORY_HOURLY_QUERY = 4;
+
+    // Indicates that the incoming query is for a page of history rows including archived ones
+    public static final int HISTORY_ALL_QUERY = 5;
+
+    // Indicates that the incoming request is for an export of the whole history
+    public static final int HISTORY_EXPORT_QUERY = 6;
+
     // Indicates an invalid content URI
     public static final int INVALID_URI = -1;
 
-    // Constants for building SQLite tables during initialization
-    private static final String PRIMARY_KEY_TYPE = "INTEGER PRIMARY KEY";
+    // Page size of a newly created database, in bytes
+    private static final int DATABASE_PAGE_SIZE = 4096;
 
-    private static final String TEXT_TYPE = " TEXT";
-    private static final String INTEGER_TYPE = " INTEGER";
-    private static final String LONG_TYPE = " LONG";
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
 
-    private static final String COMMA_SEP = ",";
-    private static final String SQL_CREATE_ENTRIES =
-            "CREATE TABLE " + HistoryContract.TABLE_NAME + " (" +
-                    HistoryContract._ID + " INTEGER PRIMARY KEY," +
-                    HistoryContract.COLUMN_NAME_CNT + INTEGER_TYPE + " NOT NULL " + COMMA_SEP +
-                    HistoryContract.COLUMN_NAME_CHANGE + INTEGER_TYPE + " NOT NULL " + COMMA_SEP +
-                    HistoryContract.COLUMN_NAME_TIME + LONG_TYPE + " NOT NULL " +
-                    " )";
+    // Page cache size of each connection; negative values are in KiB rather than pages
+    private static final int DATABASE_CACHE_SIZE_KB = 2048;
 
     // Identifies log statements issued by this component
     public static final String LOG_TAG = "HistoryProvider";
@@ -61,6 +88,32 @@ public class HistoryProvider extends ContentProvider {
     // Defines an helper object for the backing database
     private SQLiteOpenHelper mHelper;
 
+    // Applies schema migrations and tracks their background backfills
+    private final HistoryMigrations mMigrations = new HistoryMigrations();
+
+    // Derives the count from the history rows and checkpoints it
+    private final HistoryCheckpoints mCheckpoints = new HistoryCheckpoints();
+
+    // Sends change notifications, at most one per configured window
+    private HistoryChangeNotifier mNotifier;
+
+    // Serves repeated page queries from memory until the history changes
+    private HistoryPageCache mPageCache;
+
+    // Latency histograms of the provider operations, see HistoryContract.METHOD_METRICS
+    private final HistoryMetrics mMetrics = new HistoryMetrics();
+
+    // Runs database work that must stay off the main thread, such as opening and backfilling
+    private ExecutorService mBackgroundExecutor;
+
+    // Set while applyBatch() runs on the current thread, to hold back per-operation notifications
+    private final ThreadLocal<Boolean> mInBatch = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return Boolean.FALSE;
+        }
+    };
+
     // Defines a helper object that matches content URIs to table-specific parameters
     private static final UriMatcher sUriMatcher;
 
@@ -99,6 +152,61 @@ public class HistoryProvider extends ContentProvider {
                         HistoryContract.AUTHORITY + "." +
                         HistoryContract.TABLE_NAME
         );
+
+        // Adds a URI "match" entry for keyset-paginated reads of the history table
+        sUriMatcher.addURI(
+                HistoryContract.AUTHORITY,
+                HistoryContract.TABLE_NAME + "/" + HistoryContract.PATH_PAGE,
+                HISTORY_PAGE_QUERY);
+
+        sMimeTypes.put(
+                HISTORY_PAGE_QUERY,
+                "vnd.android.cursor.dir/vnd." +
+                        HistoryContract.AUTHORITY + "." +
+                        HistoryContract.TABLE_NAME
+        );
+
+        // Adds a URI "match" entry for pages reading through to the archive
+        sUriMatcher.addURI(
+                HistoryContract.AUTHORITY,
+                HistoryContract.TABLE_NAME + "/" + HistoryContract.PATH_ALL,
+                HISTORY_ALL_QUERY);
+
+        sMimeTypes.put(
+                HISTORY_ALL_QUERY,
+                "vnd.android.cursor.dir/vnd." +
+                        HistoryContract.AUTHORITY + "." +
+                        HistoryContract.TABLE_NAME
+        );
+
+        // Adds a URI "match" entry for the streamed export; its MIME type depends on the format
+        sUriMatcher.addURI(
+                HistoryContract.AUTHORITY,
+                HistoryContract.TABLE_NAME + "/" + HistoryContract.PATH_EXPORT,
+                HISTORY_EXPORT_QUERY);
+
+        // Adds URI "match" entries for the read-only rollup tables
+        sUriMatcher.addURI(
+                HistoryContract.AUTHORITY,
+                HistoryContract.DAILY_TABLE_NAME,
+                HISTORY_DAILY_QUERY);
+        sUriMatcher.addURI(
+                HistoryContract.AUTHORITY,
+                HistoryContract.HOURLY_TABLE_NAME,
+                HISTORY_HOURLY_QUERY);
+
+        sMimeTypes.put(
+                HISTORY_DAILY_QUERY,
+                "vnd.android.cursor.dir/vnd." +
+                        HistoryContract.AUTHORITY + "." +
+                        HistoryContract.DAILY_TABLE_NAME
+        );
+        sMimeTypes.put(
+                HISTORY_HOURLY_QUERY,
+                "vnd.android.cursor.dir/vnd." +
+                        HistoryContract.AUTHORITY + "." +
+                        HistoryContract.HOURLY_TABLE_NAME
+        );
     }
 
     // Closes the SQLite database helper class, to avoid memory leaks
@@ -106,6 +214,31 @@ public class HistoryProvider extends ContentProvider {
         mHelper.close();
     }
 
+    /**
+     * Waits for the background work queued so far, such as the maintenance started by
+     * onCreate(), to finish. For tests, which must not race it.
+     */
+    void awaitBackgroundWork() throws InterruptedException, ExecutionException {
+        mBackgroundExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    /**
+     * Stops the background executor and the change notifier and closes the database. For tests; a
+     * provider is never shut down in an app.
+     */
+    @Override
+    public void shutdown() {
+        mBackgroundExecutor.shutdownNow();
+        if (mNotifier != null) {
+            mNotifier.shutdown();
+        }
+        close();
+    }
+
     /**
      * Defines a helper class that opens the SQLite database for this provider when a request is
      * received. If the database doesn't yet exist, the helper creates it.
@@ -121,20 +254,24 @@ public class HistoryProvider extends ContentProvider {
                     HistoryContract.DATABASE_NAME,
                     null,
                     HistoryContract.DATABASE_VERSION);
-        }
 
+            // Lets readers run concurrently with the writer instead of blocking on it
+            setWriteAheadLoggingEnabled(true);
+        }
 
         /**
-         * Executes the queries to drop all of the tables from the database.
+         * Tunes each connection before it is used. The page size only takes effect when the
+         * database file is created.
          *
-         * @param db A handle to the provider's backing database.
+         * @param db The database being configured
          */
-        private void dropTables(SQLiteDatabase db) {
-
-            // If the table doesn't exist, don't throw an error
-            db.execSQL("DROP TABLE IF EXISTS " + HistoryContract.TABLE_NAME);
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.setPageSize(DATABASE_PAGE_SIZE);
+            db.execSQL("PRAGMA cache_size = -" + DATABASE_CACHE_SIZE_KB);
         }
 
+
         /**
          * Does setup of the database. The system automatically invokes this method when
          * SQLiteDatabase.getWriteableDatabase() or SQLiteDatabase.getReadableDatabase() are
@@ -145,12 +282,13 @@ public class HistoryProvider extends ContentProvider {
         @Override
         public void onCreate(SQLiteDatabase db) {
             // Creates the tables in the backing database for this provider
-            db.execSQL(SQL_CREATE_ENTRIES);
+            mMigrations.upgrade(db, 0, HistoryContract.DATABASE_VERSION);
         }
 
         /**
-         * Handles upgrading the database from a previous version. Drops the old tables and creates
-         * new ones.
+         * Handles upgrading the database from a previous version. Applies the schema step of each
+         * newer version and leaves their backfills to the background executor; existing rows are
+         * kept.
          *
          * @param db       The database to upgrade
          * @param version1 The old database version
@@ -158,21 +296,25 @@ public class HistoryProvider extends ContentProvider {
          */
         @Override
         public void onUpgrade(SQLiteDatabase db, int version1, int version2) {
-            Log.w(DataProviderHelper.class.getName(),
-                    "Upgrading database from version " + version1 + " to "
-                            + version2 + ", which will destroy all the existing data"
-            );
+            Log.i(DataProviderHelper.class.getName(),
+                    "Upgrading database from version " + version1 + " to " + version2);
 
-            // Drops all the existing tables in the database
-            dropTables(db);
+            mMigrations.upgrade(db, version1, version2);
+        }
 
-            // Invokes the onCreate callback to build new tables
-            onCreate(db);
+        /**
+         * Loads the state of pending backfills each time the database is opened.
+         *
+         * @param db The open database
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            mMigrations.load(db);
         }
 
         /**
-         * Handles downgrading the database from a new to a previous version. Drops the old tables
-         * and creates new ones.
+         * Handles downgrading the database from a new to a previous version. Tables and rows are
+         * kept; newer columns and tables are simply ignored by the older schema.
          *
          * @param db       The database object to downgrade
          * @param version1 The old database version
@@ -181,16 +323,9 @@ public class HistoryProvider extends ContentProvider {
         @Override
         public void onDowngrade(SQLiteDatabase db, int version1, int version2) {
             Log.w(DataProviderHelper.class.getName(),
-                    "Downgrading database from version " + version1 + " to "
-                            + version2 + ", which will destroy all the existing data"
-            );
-
-            // Drops all the existing tables in the database
-            dropTables(db);
-
-            // Invokes the onCreate callback to build new tables
-            onCreate(db);
+                    "Downgrading database from version " + version1 + " to " + version2);
 
+            mMigrations.downgrade(db, version2);
         }
     }
 
@@ -205,6 +340,41 @@ public class HistoryProvider extends ContentProvider {
         // Creates a new database helper object
         mHelper = new DataProviderHelper(getContext());
 
+        mNotifier = new HistoryChangeNotifier(getContext().getContentResolver(),
+                getContext().getResources().getInteger(R.integer.history_notify_window_ms));
+        mPageCache = new HistoryPageCache(
+                getContext().getResources().getInteger(R.integer.history_page_cache_rows));
+
+        final int retentionDays =
+                getContext().getResources().getInteger(R.integer.history_retention_days);
+
+        // Opens, and if needed upgrades, the database off the main thread, then runs backfills
+        // and moves rows past the retention period to the archive
+        mBackgroundExecutor = Executors.newSingleThreadExecutor();
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Opening includes creating or upgrading the schema
+                    long start = System.nanoTime();
+                    SQLiteDatabase db = mHelper.getWritableDatabase();
+                    mMetrics.record(HistoryMetrics.OPEN, start, 0);
+                    mMigrations.runPendingBackfills(db);
+
+                    // The rollups must have counted the rows before they leave the table
+                    if (retentionDays > 0
+                            && mMigrations.isComplete(HistoryMigrations.VERSION_ROLLUPS)) {
+                        long cutoff = System.currentTimeMillis() - retentionDays * MILLIS_PER_DAY;
+                        if (HistoryArchive.archive(db, cutoff) > 0) {
+                            notifyTableChanged();
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to run background maintenance", e);
+                }
+            }
+        });
+
         return true;
     }
 
@@ -220,7 +390,16 @@ public class HistoryProvider extends ContentProvider {
      * @see android.content.ContentProvider#query(android.net.Uri, String[], String, String[], String)
      */
     @Override
-    public Cursor query(
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        long start = System.nanoTime();
+        Cursor cursor = runQuery(uri, projection, selection, selectionArgs, sortOrder);
+        // Counting the rows also runs the query, which SQLite cursors otherwise defer
+        mMetrics.record(HistoryMetrics.QUERY, start, cursor == null ? 0 : cursor.getCount());
+        return cursor;
+    }
+
+    private Cursor runQuery(
             Uri uri,
             String[] projection,
             String selection,
@@ -242,6 +421,50 @@ public class HistoryProvider extends ContentProvider {
                 // Sets the ContentResolver to watch this content URI for data changes
                 returnCursor.setNotificationUri(getContext().getContentResolver(), uri);
                 return returnCursor;
+
+            // If the query is for a page of history rows
+            case HISTORY_PAGE_QUERY:
+                Cursor pageCursor = queryCached(db, HISTORY_PAGE_QUERY, uri, projection,
+                        selection, selectionArgs);
+
+                // Pages change whenever the underlying table does
+                pageCursor.setNotificationUri(getContext().getContentResolver(),
+                        HistoryContract.HISTORY_TABLE_CONTENTURI);
+                return pageCursor;
+
+            // If the query is for a page of history rows reading through to the archive
+            case HISTORY_ALL_QUERY:
+                if (selection != null) {
+                    throw new IllegalArgumentException("Query -- Selection not supported:" + uri);
+                }
+                Cursor allCursor = queryCached(db, HISTORY_ALL_QUERY, uri, projection, null, null);
+
+                allCursor.setNotificationUri(getContext().getContentResolver(),
+                        HistoryContract.HISTORY_TABLE_CONTENTURI);
+                return allCursor;
+
+            // If the query is for one of the rollups
+            case HISTORY_DAILY_QUERY:
+            case HISTORY_HOURLY_QUERY:
+                boolean daily = sUriMatcher.match(uri) == HISTORY_DAILY_QUERY;
+                String table;
+                if (mMigrations.isComplete(HistoryMigrations.VERSION_ROLLUPS)) {
+                    table = daily ? HistoryContract.DAILY_TABLE_NAME
+                            : HistoryContract.HOURLY_TABLE_NAME;
+                } else {
+                    // Aggregates the raw rows until the rollups have been backfilled
+                    table = daily ? HistorySchema.SQL_DAILY_FROM_HISTORY
+                            : HistorySchema.SQL_HOURLY_FROM_HISTORY;
+                }
+                Cursor rollupCursor = db.query(
+                        table,
+                        projection,
+                        selection, selectionArgs, null, null, sortOrder);
+
+                // Rollups change whenever rows are added to the history table
+                rollupCursor.setNotificationUri(getContext().getContentResolver(),
+                        HistoryContract.HISTORY_TABLE_CONTENTURI);
+                return rollupCursor;
             case INVALID_URI:
 
                 throw new IllegalArgumentException("Query -- Invalid URI:" + uri);
@@ -250,6 +473,342 @@ public class HistoryProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * Returns a page of history rows from {@link HistoryPageCache} if it holds a current copy,
+     * and otherwise reads it and caches it.
+     *
+     * @param match Either {@link #HISTORY_PAGE_QUERY} or {@link #HISTORY_ALL_QUERY}
+     */
+    private Cursor queryCached(SQLiteDatabase db, int match, Uri uri, String[] projection,
+                               String selection, String[] selectionArgs) {
+        String key = HistoryPageCache.keyOf(match, uri, projection, selection, selectionArgs,
+                null);
+        Cursor cursor = mPageCache.get(key);
+        if (cursor != null) {
+            return cursor;
+        }
+
+        // Read before the table, so rows written meanwhile are never cached as current
+        long generation = mPageCache.generation();
+        cursor = match == HISTORY_ALL_QUERY
+                ? queryAll(db, uri, projection)
+                : queryPage(db, uri, projection, selection, selectionArgs);
+        if (cursor instanceof HistoryArrayCursor) {
+            mPageCache.put(key, generation, (HistoryArrayCursor) cursor);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns one page of history rows, newest first. Pages are addressed by the _ID of the last
+     * row of the previous page rather than by an offset, so every page is a seek on the primary
+     * key followed by a bounded scan, however deep into the table it lies.
+     * <p/>
+     * A page restricted to a time range is read through the time index instead, so it costs a
+     * range scan over the rows of that range, however long the history is.
+     *
+     * @param db            The database to query
+     * @param uri           The page URI, see {@link HistoryContract#buildPageUri(long, int)}
+     * @param projection    The names of the columns to return in the cursor
+     * @param selection     An additional selection clause, or null
+     * @param selectionArgs The arguments of the additional selection clause
+     * @return the rows of the page
+     */
+    private Cursor queryPage(SQLiteDatabase db, Uri uri, String[] projection,
+                             String selection, String[] selectionArgs) {
+        int limit = pageLimit(uri);
+        String beforeParam = uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_BEFORE);
+        String afterParam = uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_AFTER);
+        String sinceParam = uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_SINCE);
+        String untilParam = uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_UNTIL);
+        try {
+            // Validates the bounds before they are passed on as arguments
+            if (beforeParam != null) {
+                Long.parseLong(beforeParam);
+            }
+            if (afterParam != null) {
+                Long.parseLong(afterParam);
+            }
+            if (sinceParam != null) {
+                Long.parseLong(sinceParam);
+            }
+            if (untilParam != null) {
+                Long.parseLong(untilParam);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Query -- Invalid page URI:" + uri);
+        }
+
+        if (beforeParam != null) {
+            selection = appendSelection(selection, HistoryContract._ID + " < ?");
+            selectionArgs = appendSelectionArg(selectionArgs, beforeParam);
+        }
+        if (afterParam != null) {
+            selection = appendSelection(selection, HistoryContract._ID + " > ?");
+            selectionArgs = appendSelectionArg(selectionArgs, afterParam);
+        }
+        if (sinceParam != null) {
+            selection = appendSelection(selection, HistoryContract.COLUMN_NAME_TIME + " >= ?");
+            selectionArgs = appendSelectionArg(selectionArgs, sinceParam);
+        }
+        if (untilParam != null) {
+            selection = appendSelection(selection, HistoryContract.COLUMN_NAME_TIME + " < ?");
+            selectionArgs = appendSelectionArg(selectionArgs, untilParam);
+        }
+
+        // Pins time ranges to the time index, which only exists once its backfill has run
+        String table = HistoryContract.TABLE_NAME;
+        if ((sinceParam != null || untilParam != null)
+                && mMigrations.isComplete(HistoryMigrations.VERSION_TIME_INDEX)) {
+            table = HistorySchema.TABLE_BY_TIME;
+        }
+
+        Cursor cursor = db.query(
+                table,
+                projection,
+                selection, selectionArgs, null, null,
+                HistoryContract._ID + " DESC",
+                String.valueOf(limit));
+        if (!HistoryArrayCursor.supports(projection)) {
+            return cursor;
+        }
+
+        // Copies the page into primitive arrays in one pass and releases the window
+        HistoryArrayCursor page = new HistoryArrayCursor(projection, cursor.getCount());
+        try {
+            page.addRows(cursor);
+        } finally {
+            cursor.close();
+        }
+        return page;
+    }
+
+    /**
+     * Returns one page of history rows like {@link #queryPage}, continuing into the archive once
+     * the rows of the history table run out.
+     *
+     * @param db         The database to query
+     * @param uri        The page URI, with the query parameters of a page URI
+     * @param projection The names of the columns to return in the cursor, or null for all
+     * @return the rows of the page
+     */
+    private Cursor queryAll(SQLiteDatabase db, Uri uri, String[] projection) {
+        if (projection == null) {
+            projection = HistoryArchive.COLUMNS;
+        }
+        if (!HistoryArrayCursor.supports(projection)) {
+            throw new IllegalArgumentException("Query -- Invalid projection:" + uri);
+        }
+
+        // queryPage() validates the parameters, and returns a HistoryArrayCursor here
+        HistoryArrayCursor page =
+                (HistoryArrayCursor) queryPage(db, uri, projection, null, null);
+        String beforeParam = uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_BEFORE);
+        String afterParam = uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_AFTER);
+        String sinceParam = uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_SINCE);
+        String untilParam = uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_UNTIL);
+        int limit = pageLimit(uri);
+        if (page.getCount() < limit) {
+            HistoryArchive.query(db,
+                    beforeParam != null ? Long.parseLong(beforeParam) : Long.MAX_VALUE,
+                    afterParam != null ? Long.parseLong(afterParam) : Long.MIN_VALUE,
+                    sinceParam != null ? Long.parseLong(sinceParam) : Long.MIN_VALUE,
+                    untilParam != null ? Long.parseLong(untilParam) : Long.MAX_VALUE,
+                    limit - page.getCount(), page);
+        }
+        return page;
+    }
+
+    /**
+     * Returns the limit of a page URI, {@link HistoryContract#DEFAULT_PAGE_SIZE} if it has none,
+     * lowered to {@link HistoryContract#MAX_PAGE_SIZE}.
+     *
+     * @throws IllegalArgumentException if the limit is not a positive number
+     */
+    private static int pageLimit(Uri uri) {
+        String limitParam = uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_LIMIT);
+        if (limitParam == null) {
+            return HistoryContract.DEFAULT_PAGE_SIZE;
+        }
+        int limit;
+        try {
+            limit = Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Query -- Invalid page URI:" + uri);
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Query -- Invalid page limit:" + uri);
+        }
+        return Math.min(limit, HistoryContract.MAX_PAGE_SIZE);
+    }
+
+    private static String appendSelection(String selection, String clause) {
+        if (selection == null || selection.length() == 0) {
+            return clause;
+        }
+        return "(" + selection + ") AND " + clause;
+    }
+
+    private static String[] appendSelectionArg(String[] selectionArgs, String arg) {
+        if (selectionArgs == null) {
+            return new String[]{arg};
+        }
+        String[] args = new String[selectionArgs.length + 1];
+        System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+        args[selectionArgs.length] = arg;
+        return args;
+    }
+
+    /**
+     * Implements the provider methods declared in {@link HistoryContract}.
+     *
+     * @param method The method to call
+     * @param arg    The method's String argument, if any
+     * @param extras The method's extras, if any
+     * @return the result of the method
+     * @see android.content.ContentProvider#call(String, String, android.os.Bundle)
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (HistoryContract.METHOD_INCREMENT.equals(method)) {
+            int[] deltas;
+            long[] times = null;
+            if (extras != null && extras.containsKey(HistoryContract.EXTRA_DELTAS)) {
+                deltas = extras.getIntArray(HistoryContract.EXTRA_DELTAS);
+                times = extras.getLongArray(HistoryContract.EXTRA_TIMES);
+            } else if (extras != null && extras.containsKey(HistoryContract.EXTRA_DELTA)) {
+                deltas = new int[]{extras.getInt(HistoryContract.EXTRA_DELTA)};
+            } else {
+                try {
+                    deltas = new int[]{Integer.parseInt(arg)};
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Call: Invalid delta " + arg);
+                }
+            }
+            if (deltas == null || (times != null && times.length != deltas.length)) {
+                throw new IllegalArgumentException("Call: Invalid deltas for " + method);
+            }
+            long start = System.nanoTime();
+            Bundle result = increment(deltas, times);
+            mMetrics.record(HistoryMetrics.INCREMENT, start, deltas.length);
+            return result;
+        } else if (HistoryContract.METHOD_IMPORT.equals(method)) {
+            String format = extras == null ? null : extras.getString(HistoryContract.EXTRA_FORMAT);
+            if (arg == null || (format != null && !HistoryContract.FORMAT_CSV.equals(format)
+                    && !HistoryContract.FORMAT_BINARY.equals(format))) {
+                throw new IllegalArgumentException("Call: Invalid import of " + arg);
+            }
+            return importHistory(Uri.parse(arg), HistoryContract.FORMAT_BINARY.equals(format));
+        } else if (HistoryContract.METHOD_GET_COUNT.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(HistoryContract.EXTRA_COUNT, mCheckpoints.getCount(mHelper.getWritableDatabase()));
+            return result;
+        } else if (HistoryContract.METHOD_METRICS.equals(method)) {
+            return mMetrics.snapshot();
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Appends one history row for each delta and advances the count past it, all in one
+     * transaction, so the count and the history can never disagree.
+     *
+     * @param deltas The changes to apply, in order
+     * @param times  The time of each change, or null to use the current time
+     * @return a Bundle holding the resulting count
+     */
+    private Bundle increment(int[] deltas, long[] times) {
+        SQLiteDatabase localSQLiteDatabase = mHelper.getWritableDatabase();
+        SQLiteStatement statement =
+                localSQLiteDatabase.compileStatement(HistorySchema.SQL_INSERT_ENTRY);
+        long now = System.currentTimeMillis();
+        long firstId = -1;
+        long lastId = -1;
+        int count = 0;
+
+        // Holds the in-memory count for the whole transaction, so no other writer interleaves
+        synchronized (mCheckpoints) {
+            boolean committed = false;
+            localSQLiteDatabase.beginTransaction();
+            try {
+                count = mCheckpoints.getCount(localSQLiteDatabase);
+                for (int i = 0; i < deltas.length; i++) {
+                    statement.clearBindings();
+                    statement.bindNull(1);
+                    statement.bindLong(2, CounterEngine.apply(count, deltas[i]));
+                    statement.bindLong(3, deltas[i]);
+                    statement.bindLong(4, times == null ? now : times[i]);
+                    lastId = statement.executeInsert();
+                    if (-1 == lastId) {
+                        throw new SQLiteException("Increment error");
+                    }
+                    if (-1 == firstId) {
+                        firstId = lastId;
+                    }
+                    count = mCheckpoints.append(localSQLiteDatabase, lastId, deltas[i]);
+                }
+                localSQLiteDatabase.setTransactionSuccessful();
+                committed = true;
+            } finally {
+                localSQLiteDatabase.endTransaction();
+                statement.close();
+                if (!committed) {
+                    mCheckpoints.invalidate();
+                }
+            }
+        }
+
+        if (-1 != lastId) {
+            notifyAppended(firstId, lastId);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(HistoryContract.EXTRA_COUNT, count);
+        return result;
+    }
+
+    /**
+     * Imports a history stream, see {@link HistoryImporter}, notifying its progress after each
+     * chunk and the change of the table once it is done.
+     *
+     * @param source The URI of the stream
+     * @param binary Whether the stream is in the binary format rather than CSV
+     * @return a Bundle holding the number of rows imported
+     */
+    private Bundle importHistory(Uri source, boolean binary) {
+        final ContentResolver resolver = getContext().getContentResolver();
+        HistoryImporter importer =
+                new HistoryImporter(mHelper.getWritableDatabase(), mCheckpoints);
+        long rows;
+        try {
+            InputStream in = resolver.openInputStream(source);
+            if (in == null) {
+                throw new IllegalArgumentException("Call: Cannot open " + source);
+            }
+            try {
+                rows = importer.run(in, binary, new HistoryImporter.ProgressListener() {
+                    @Override
+                    public void onProgress(long rowsRead, long rowsImported) {
+                        mPageCache.invalidate();
+                        resolver.notifyChange(
+                                HistoryContract.buildImportProgressUri(rowsRead, rowsImported),
+                                null);
+                    }
+                });
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Call: Failed to read " + source, e);
+        } finally {
+            notifyTableChanged();
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(HistoryContract.EXTRA_ROWS, rows);
+        return result;
+    }
+
     /**
      * Returns the mimeType associated with the Uri (query).
      *
@@ -259,10 +818,43 @@ public class HistoryProvider extends ContentProvider {
      */
     @Override
     public String getType(Uri uri) {
-
+        if (sUriMatcher.match(uri) == HISTORY_EXPORT_QUERY) {
+            return getExportType(uri);
+        }
         return sMimeTypes.get(sUriMatcher.match(uri));
     }
 
+    private static String getExportType(Uri uri) {
+        String format = uri.getQueryParameter(HistoryContract.QUERY_PARAMETER_FORMAT);
+        if (format == null || HistoryContract.FORMAT_CSV.equals(format)) {
+            return HistoryContract.EXPORT_MIME_TYPE_CSV;
+        } else if (HistoryContract.FORMAT_BINARY.equals(format)) {
+            return HistoryContract.EXPORT_MIME_TYPE_BINARY;
+        }
+        throw new IllegalArgumentException("Export -- Invalid format:" + uri);
+    }
+
+    /**
+     * Opens an export of the whole history. The rows are written into a pipe by a background
+     * thread while the caller reads the other end, so neither side holds more than one chunk.
+     *
+     * @param uri  the export URI, see {@link HistoryContract#buildExportUri(String)}
+     * @param mode must be "r"
+     * @return the read end of the pipe
+     * @throws FileNotFoundException if the URI is not an export URI or the mode is not "r"
+     * @see android.content.ContentProvider#openFile(android.net.Uri, String)
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != HISTORY_EXPORT_QUERY) {
+            throw new FileNotFoundException("Open -- Invalid URI:" + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Open -- Export is read-only:" + uri);
+        }
+        return openPipeHelper(uri, getExportType(uri), null, null, new HistoryExporter(mHelper));
+    }
+
     /**
      * Insert a single row into a table
      *
@@ -273,8 +865,16 @@ public class HistoryProvider extends ContentProvider {
      */
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long start = System.nanoTime();
+        Uri row = runInsert(uri, values);
+        mMetrics.record(HistoryMetrics.INSERT, start, row == null ? 0 : 1);
+        return row;
+    }
+
+    private Uri runInsert(Uri uri, ContentValues values) {
         SQLiteDatabase localSQLiteDatabase;
         long id;
+        long newestId;
 
         // Decode the URI to choose which action to take
         switch (sUriMatcher.match(uri)) {
@@ -284,17 +884,26 @@ public class HistoryProvider extends ContentProvider {
                 // Creates a writeable database or gets one from cache
                 localSQLiteDatabase = mHelper.getWritableDatabase();
 
-                // Inserts the row into the table and returns the new row's _id value
-                id = localSQLiteDatabase.insertWithOnConflict(
-                        HistoryContract.TABLE_NAME,
-                        null,
-                        values,
-                        SQLiteDatabase.CONFLICT_REPLACE
-                );
+                // Holds the in-memory count until it is invalidated, so that increment() cannot
+                // checkpoint a count that misses this row
+                synchronized (mCheckpoints) {
+                    newestId = newestId(localSQLiteDatabase);
+
+                    // Inserts the row into the table and returns the new row's _id value; an
+                    // existing _ID throws rather than replacing its row
+                    id = localSQLiteDatabase.insertOrThrow(
+                            HistoryContract.TABLE_NAME,
+                            null,
+                            values
+                    );
+
+                    // Rows written directly are replayed into the count on its next read
+                    mCheckpoints.invalidate();
+                }
 
                 // If the insert succeeded, notify a change and return the new row's content URI.
                 if (-1 != id) {
-                    getContext().getContentResolver().notifyChange(uri, null);
+                    notifyWritten(id, id, newestId);
                     return Uri.withAppendedPath(uri, String.valueOf(id));
                 } else {
 
@@ -309,38 +918,213 @@ public class HistoryProvider extends ContentProvider {
 
     }
 
+    /**
+     * Inserts a batch of rows into a table inside a single transaction, so the whole batch costs
+     * one commit and one change notification. Every row is written through the same compiled
+     * statement.
+     *
+     * @param uri    the content URI of the table
+     * @param values the rows to insert
+     * @return the number of rows inserted
+     * @see android.content.ContentProvider#bulkInsert(android.net.Uri, android.content.ContentValues[])
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        int rows = runBulkInsert(uri, values);
+        mMetrics.record(HistoryMetrics.BULK_INSERT, start, rows);
+        return rows;
+    }
+
+    private int runBulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase localSQLiteDatabase;
+
+        switch (sUriMatcher.match(uri)) {
+            case HISTORY_QUERY:
+                localSQLiteDatabase = mHelper.getWritableDatabase();
+
+                SQLiteStatement statement =
+                localSQLiteDatabase.compileStatement(HistorySchema.SQL_INSERT_ENTRY);
+                long newestId;
+                long firstId = Long.MAX_VALUE;
+                long lastId = -1;
+                // Holds the in-memory count until it is invalidated, as insert() does
+                synchronized (mCheckpoints) {
+                    localSQLiteDatabase.beginTransaction();
+                    try {
+                        newestId = newestId(localSQLiteDatabase);
+                        for (ContentValues value : values) {
+                            bindEntry(statement, value);
+                            long id = statement.executeInsert();
+                            if (-1 == id) {
+                                throw new SQLiteException("Bulk insert error:" + uri);
+                            }
+                            // Callers may give the _IDs, in any order
+                            firstId = Math.min(firstId, id);
+                            lastId = Math.max(lastId, id);
+                        }
+                        localSQLiteDatabase.setTransactionSuccessful();
+                    } finally {
+                        localSQLiteDatabase.endTransaction();
+                        statement.close();
+                        mCheckpoints.invalidate();
+                    }
+                }
+
+                // Notifies once for the whole batch, with the range of rows written
+                if (-1 != lastId) {
+                    notifyWritten(firstId, lastId, newestId);
+                }
+                return values.length;
+
+            case INVALID_URI:
+
+                throw new IllegalArgumentException("Bulk insert: Invalid URI" + uri);
+        }
+        return 0;
+    }
+
+    /**
+     * Applies a batch of operations inside a single transaction. Change notifications from the
+     * individual operations are held back and a single notification is sent once the batch has
+     * been committed.
+     *
+     * @param operations the operations to apply
+     * @return the results of the operations, in order
+     * @throws OperationApplicationException if any operation fails; no operation is committed
+     * @see android.content.ContentProvider#applyBatch(java.util.ArrayList)
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase localSQLiteDatabase = mHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+
+        // Taken before the transaction, in the same order as increment(), and held until the
+        // count has been invalidated after the commit
+        synchronized (mCheckpoints) {
+            mInBatch.set(Boolean.TRUE);
+            localSQLiteDatabase.beginTransaction();
+            try {
+                results = super.applyBatch(operations);
+                localSQLiteDatabase.setTransactionSuccessful();
+            } finally {
+                localSQLiteDatabase.endTransaction();
+                mInBatch.set(Boolean.FALSE);
+                mCheckpoints.invalidate();
+            }
+        }
+
+        if (!operations.isEmpty()) {
+            notifyTableChanged();
+        }
+        return results;
+    }
+
+    /**
+     * Binds a row to a statement compiled from {@link HistorySchema#SQL_INSERT_ENTRY}. A missing
+     * _ID is bound as NULL, which lets SQLite assign the next row id.
+     *
+     * @param statement the compiled insert statement
+     * @param values    the row to bind
+     */
+    private static void bindEntry(SQLiteStatement statement, ContentValues values) {
+        statement.clearBindings();
+        bindLong(statement, 1, values.getAsLong(HistoryContract._ID));
+        bindLong(statement, 2, values.getAsLong(HistoryContract.COLUMN_NAME_CNT));
+        bindLong(statement, 3, values.getAsLong(HistoryContract.COLUMN_NAME_CHANGE));
+        bindLong(statement, 4, values.getAsLong(HistoryContract.COLUMN_NAME_TIME));
+    }
+
+    private static void bindLong(SQLiteStatement statement, int index, Long value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+
+    /**
+     * Returns the highest _ID in the history, archived rows included, or 0 if it is empty.
+     */
+    private static long newestId(SQLiteDatabase db) {
+        long newest = DatabaseUtils.longForQuery(db, "SELECT ifnull(max(" + HistoryContract._ID +
+                "), 0) FROM " + HistoryContract.TABLE_NAME, null);
+        return Math.max(newest, HistoryArchive.newestArchivedId(db));
+    }
+
+    /**
+     * Notifies observers of rows written with caller-supplied _IDs. Tails only read rows above
+     * the newest one they have seen, so rows count as appended only if they all lie above every
+     * row that existed before; rows written below it change the table.
+     *
+     * @param firstId  the lowest _ID written
+     * @param lastId   the highest _ID written
+     * @param newestId the highest _ID before the write, see {@link #newestId}
+     */
+    private void notifyWritten(long firstId, long lastId, long newestId) {
+        if (firstId > newestId) {
+            notifyAppended(firstId, lastId);
+        } else {
+            notifyTableChanged();
+        }
+    }
+
+    /**
+     * Notifies observers that rows were appended, unless the change is part of a batch that
+     * notifies on its own once it has been committed. Notifications are coalesced by
+     * {@link HistoryChangeNotifier}. Cached pages are invalidated right away in either case.
+     *
+     * @param firstId the _ID of the first row appended
+     * @param lastId  the _ID of the last row appended
+     */
+    private void notifyAppended(long firstId, long lastId) {
+        mPageCache.invalidate();
+        if (!mInBatch.get()) {
+            mNotifier.rowsAppended(firstId, lastId);
+        }
+    }
+
+    /**
+     * Notifies observers that the table changed in some other way, unless the change is part of
+     * a batch that notifies on its own once it has been committed. Cached pages are invalidated
+     * right away in either case.
+     */
+    private void notifyTableChanged() {
+        mPageCache.invalidate();
+        if (!mInBatch.get()) {
+            mNotifier.tableChanged();
+        }
+    }
+
+    /**
+     * Prints the hit and miss counts of the page cache and the operation latencies, for
+     * "adb shell dumpsys activity provider HistoryProvider".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println(mPageCache);
+        writer.print(HistoryMetrics.format(mMetrics.snapshot()));
+    }
+
 
     /**
-     * Returns an UnsupportedOperationException if delete is called
+     * Throws an UnsupportedOperationException: history rows are never deleted, except by the
+     * archive once the rollups and checkpoints have counted them, see {@link HistorySchema}.
      *
      * @param uri           The content URI
      * @param selection     The SQL WHERE string. Use "?" to mark places that should be substituted by
      *                      values in selectionArgs.
      * @param selectionArgs An array of values that are mapped to each "?" in selection. If no "?"
      *                      are used, set this to NULL.
-     * @return the number of rows deleted
+     * @return never returns normally
      * @see android.content.ContentProvider#delete(android.net.Uri, String, String[])
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Gets a writeable database instance if one is not already cached
-        SQLiteDatabase localSQLiteDatabase;
-        int rows;
-
         switch (sUriMatcher.match(uri)) {
             case HISTORY_QUERY:
-                localSQLiteDatabase = mHelper.getWritableDatabase();
-                rows = localSQLiteDatabase.delete(HistoryContract.TABLE_NAME,
-                        selection,
-                        selectionArgs);
-                // If the insert succeeded, notify a change and return the new row's content URI.
-                if (-1 != rows) {
-                    getContext().getContentResolver().notifyChange(uri, null);
-                    return rows;
-                } else {
-
-                    throw new SQLiteException("Delete person error:" + uri);
-                }
+                throw new UnsupportedOperationException("Delete -- history is append-only " + uri);
 
             case INVALID_URI:
                 throw new UnsupportedOperationException("Delete -- unsupported operation " + uri);
@@ -350,7 +1134,8 @@ public class HistoryProvider extends ContentProvider {
     }
 
     /**
-     * Updates one or more rows in a table.
+     * Throws an UnsupportedOperationException: history rows are never changed once written, see
+     * {@link HistorySchema}.
      *
      * @param uri           The content URI for the table
      * @param values        The values to use to update the row or rows. You only need to specify column
@@ -360,36 +1145,15 @@ public class HistoryProvider extends ContentProvider {
      *                      update. Use "?" to mark places that should be substituted by values in selectionArgs.
      * @param selectionArgs An array of values that are mapped in order to each "?" in selection.
      *                      If no "?" are used, set this to NULL.
-     * @return int The number of rows updated.
+     * @return never returns normally
      * @see android.content.ContentProvider#update(android.net.Uri, android.content.ContentValues, String, String[])
      */
     @Override
     public int update(Uri uri, ContentValues values, String selection,
                       String[] selectionArgs) {
-        SQLiteDatabase localSQLiteDatabase;
-        int rows;
-
-        // Decodes the content URI and choose which insert to use
         switch (sUriMatcher.match(uri)) {
             case HISTORY_QUERY:
-                // Creats a new writeable database or retrieves a cached one
-                localSQLiteDatabase = mHelper.getWritableDatabase();
-
-                // Updates the table
-                rows = localSQLiteDatabase.update(
-                        HistoryContract.TABLE_NAME,
-                        values,
-                        selection,
-                        selectionArgs);
-
-                // If the update succeeded, notify a change and return the number of updated rows.
-                if (0 != rows) {
-                    getContext().getContentResolver().notifyChange(uri, null);
-                    return rows;
-                } else {
-
-                    throw new SQLiteException("Update error:" + uri);
-                }
+                throw new UnsupportedOperationException("Update -- history is append-only " + uri);
 
             case INVALID_URI:
                 throw new IllegalArgumentException("Update: Invalid URI: " + uri);
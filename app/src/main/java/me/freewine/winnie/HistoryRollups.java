@@ -0,0 +1,210 @@
+package me.freewine.winnie;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import me.freewine.winnie.core.HistorySchema;
+
+/**
+ * Schema and maintenance of the daily and hourly rollups of the history table.
+ * <p/>
+ * Each rollup table holds one row per local day or hour with the number of taps and the sums of
+ * their changes. A trigger updates both tables in the same transaction as every row appended to
+ * the history table, so summaries read a few dozen rows instead of aggregating the whole log.
+ * Both tables and the trigger are defined in {@link HistorySchema}. Rows that existed before
+ * the rollups were added are folded in by {@link #backfill}, newest first, while
+ * {@link HistorySchema#SQL_DAILY_FROM_HISTORY} and {@link HistorySchema#SQL_HOURLY_FROM_HISTORY}
+ * serve reads from the raw rows until it finishes. The backfill continues into the archive once
+ * the rows of the history table run out, as the rollups are cleared and recounted after a
+ * downgrade and the archived rows would otherwise drop out of them.
+ * <p/>
+ * History stays append-only as the trigger requires, see {@link HistorySchema}; rows moved to the
+ * archive leave the rollups unchanged, as the rollups have already counted them.
+ */
+final class HistoryRollups {
+    // Holds the rows of one archived block while the backfill folds them in
+    private static final String BACKFILL_TABLE_NAME = "temp.history_backfill";
+
+    private static final String SQL_CREATE_BACKFILL =
+            "CREATE TABLE IF NOT EXISTS " + BACKFILL_TABLE_NAME + " (" +
+                    HistoryContract._ID + " INTEGER PRIMARY KEY," +
+                    HistoryContract.COLUMN_NAME_CHANGE + " INTEGER NOT NULL," +
+                    HistoryContract.COLUMN_NAME_TIME + " LONG NOT NULL" +
+                    " )";
+
+    private HistoryRollups() {
+    }
+
+    /**
+     * Creates the rollup tables and the trigger that keeps them up to date. Rows appended from
+     * here on are counted by the trigger; older ones are left to {@link #backfill}.
+     *
+     * @param db The database, inside the upgrade transaction
+     */
+    static void create(SQLiteDatabase db) {
+        db.execSQL(HistorySchema.SQL_CREATE_DAILY);
+        db.execSQL(HistorySchema.SQL_CREATE_HOURLY);
+        db.execSQL(HistorySchema.SQL_CREATE_ROLLUP_TRIGGER);
+
+        // Starts over after a downgrade, as the backfill counts every existing row again
+        db.delete(HistoryContract.DAILY_TABLE_NAME, null, null);
+        db.delete(HistoryContract.HOURLY_TABLE_NAME, null, null);
+    }
+
+    /**
+     * Returns the highest _ID in the history table or the archive, where the backfill starts
+     * from.
+     *
+     * @param db The database, inside the same transaction as {@link #create}
+     */
+    static long backfillStart(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT max(" + HistoryContract._ID + ") FROM " +
+                HistoryContract.TABLE_NAME, null);
+        long newestId;
+        try {
+            newestId = cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+        // The archive only exists in databases that have been at VERSION_ARCHIVE before
+        if (HistoryArchive.exists(db)) {
+            newestId = Math.max(newestId, HistoryArchive.newestArchivedId(db));
+        }
+        return newestId;
+    }
+
+    /**
+     * Folds one chunk of rows that predate the trigger into the rollups, walking down from the
+     * newest one. Below the rows of the history table, the chunks are the archived blocks.
+     *
+     * @param db        The database, inside a transaction for this chunk
+     * @param progress  The highest _ID not folded in yet
+     * @param chunkSize The maximum number of rows to fold in
+     * @return the highest _ID left to fold in, or {@link HistoryMigrations#DONE}
+     */
+    static long backfill(SQLiteDatabase db, long progress, int chunkSize) {
+        if (progress <= 0) {
+            return HistoryMigrations.DONE;
+        }
+
+        // Finds the lowest _ID of the chunk with a bounded walk down the primary key
+        Cursor bounds = db.rawQuery("SELECT min(" + HistoryContract._ID + ") FROM (SELECT " +
+                HistoryContract._ID + " FROM " + HistoryContract.TABLE_NAME + " WHERE " +
+                HistoryContract._ID + " <= ? ORDER BY " + HistoryContract._ID + " DESC LIMIT ?)",
+                new String[]{String.valueOf(progress), String.valueOf(chunkSize)});
+        long low = 0;
+        try {
+            if (bounds.moveToFirst() && !bounds.isNull(0)) {
+                low = bounds.getLong(0);
+            }
+        } finally {
+            bounds.close();
+        }
+        if (low == 0) {
+            // The archive holds every row below those of the table
+            return backfillArchive(db, progress);
+        }
+
+        fold(db, HistoryContract.TABLE_NAME, low, progress);
+        return low > 1 ? low - 1 : HistoryMigrations.DONE;
+    }
+
+    /**
+     * Folds the newest archived block starting at or below an _ID into the rollups, through a
+     * temporary table so that its periods are computed by the same SQL as those of table rows.
+     * A block holds at most {@link HistoryArchive#BLOCK_ROWS} rows, fewer than a chunk.
+     *
+     * @param db       The database, inside a transaction for this chunk
+     * @param progress The highest _ID not folded in yet
+     * @return the highest _ID left to fold in, or {@link HistoryMigrations#DONE}
+     */
+    private static long backfillArchive(SQLiteDatabase db, long progress) {
+        if (!HistoryArchive.exists(db)) {
+            return HistoryMigrations.DONE;
+        }
+        Cursor block = HistoryArchive.queryBlockAtOrBefore(db, progress);
+        int rows;
+        byte[] data;
+        try {
+            if (!block.moveToFirst()) {
+                return HistoryMigrations.DONE;
+            }
+            rows = block.getInt(0);
+            data = block.getBlob(1);
+        } finally {
+            block.close();
+        }
+        long[] ids = new long[rows];
+        long[] counts = new long[rows];
+        long[] changes = new long[rows];
+        long[] times = new long[rows];
+        HistoryArchive.decode(data, ids, counts, changes, times, rows);
+
+        db.execSQL(SQL_CREATE_BACKFILL);
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + BACKFILL_TABLE_NAME +
+                " VALUES (?,?,?)");
+        try {
+            for (int i = 0; i < rows; i++) {
+                insert.bindLong(1, ids[i]);
+                insert.bindLong(2, changes[i]);
+                insert.bindLong(3, times[i]);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+        fold(db, BACKFILL_TABLE_NAME, ids[0], progress);
+        db.execSQL("DROP TABLE " + BACKFILL_TABLE_NAME);
+        return ids[0] > 1 ? ids[0] - 1 : HistoryMigrations.DONE;
+    }
+
+    /**
+     * Adds the rows with an _ID in [low, high] of a table to both rollups.
+     */
+    private static void fold(SQLiteDatabase db, String source, long low, long high) {
+        fold(db, source, HistoryContract.DAILY_TABLE_NAME, HistorySchema.DAY_FORMAT, low, high);
+        fold(db, source, HistoryContract.HOURLY_TABLE_NAME, HistorySchema.HOUR_FORMAT, low, high);
+    }
+
+    /**
+     * Adds the rows with an _ID in [low, high] of a table to a rollup table.
+     *
+     * @param source The history table, or a table with its _ID, change and time columns
+     */
+    private static void fold(SQLiteDatabase db, String source, String table, String format,
+                             long low, long high) {
+        String change = HistoryContract.COLUMN_NAME_CHANGE;
+        Cursor groups = db.rawQuery("SELECT " +
+                HistorySchema.period(format, HistoryContract.COLUMN_NAME_TIME) + "," +
+                "count(*)," +
+                "sum(" + change + ")," +
+                "sum(max(" + change + ", 0))," +
+                "sum(min(" + change + ", 0))" +
+                " FROM " + source +
+                " WHERE " + HistoryContract._ID + " BETWEEN ? AND ?" +
+                " GROUP BY 1",
+                new String[]{String.valueOf(low), String.valueOf(high)});
+
+        SQLiteStatement ensure = db.compileStatement(HistorySchema.ensurePeriod(table, "?"));
+        SQLiteStatement add = db.compileStatement(
+                HistorySchema.addToPeriod(table, "?", "?", "?", "?", "?"));
+        try {
+            while (groups.moveToNext()) {
+                String period = groups.getString(0);
+                ensure.bindString(1, period);
+                ensure.executeInsert();
+
+                add.bindLong(1, groups.getLong(1));
+                add.bindLong(2, groups.getLong(2));
+                add.bindLong(3, groups.getLong(3));
+                add.bindLong(4, groups.getLong(4));
+                add.bindString(5, period);
+                add.executeUpdateDelete();
+            }
+        } finally {
+            groups.close();
+            ensure.close();
+            add.close();
+        }
+    }
+}
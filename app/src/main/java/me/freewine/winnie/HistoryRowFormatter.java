@@ -0,0 +1,153 @@
+package me.freewine.winnie;
+
+import java.util.TimeZone;
+
+/**
+ * Formats the fields of a history row into caller-owned char buffers without allocating.
+ * <p/>
+ * This removes the String and SimpleDateFormat garbage of formatting only. Showing the buffers
+ * with TextView.setText(char[], int, int) can still allocate inside TextView, for instance
+ * the String the framework builds from the text on API 21, so a whole bind is not
+ * allocation-free.
+ * <p/>
+ * Times are written as yyyy-MM-dd HH:mm:ss in the time zone given at construction. The date part
+ * is computed arithmetically and cached per day, so consecutive rows of the same day only format
+ * the time of day. Not thread-safe; meant to be used from the main thread while binding rows.
+ */
+final class HistoryRowFormatter {
+    // Length of a formatted time, yyyy-MM-dd HH:mm:ss
+    static final int TIME_LENGTH = 19;
+
+    // Length of the longest formatted int, sign included
+    static final int MAX_INT_LENGTH = 11;
+
+    private static final char[] COUNT_PREFIX = "剩余：".toCharArray();
+
+    // Size of a buffer large enough for any formatted count
+    static final int COUNT_LENGTH = COUNT_PREFIX.length + MAX_INT_LENGTH;
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final int DATE_LENGTH = 10;
+
+    private final TimeZone mTimeZone;
+
+    // yyyy-MM-dd of the local day mCachedDay, counted from the epoch
+    private final char[] mCachedDate = new char[DATE_LENGTH];
+    private long mCachedDay = Long.MIN_VALUE;
+
+    /**
+     * @param timeZone The time zone times are shown in
+     */
+    HistoryRowFormatter(TimeZone timeZone) {
+        mTimeZone = timeZone;
+    }
+
+    /**
+     * Writes the remaining count of a row, prefixed with its label.
+     *
+     * @param count The count to write
+     * @param out   A buffer of at least {@link #COUNT_LENGTH} chars
+     * @return the number of chars written
+     */
+    int formatCount(int count, char[] out) {
+        System.arraycopy(COUNT_PREFIX, 0, out, 0, COUNT_PREFIX.length);
+        return COUNT_PREFIX.length + writeInt(count, out, COUNT_PREFIX.length);
+    }
+
+    /**
+     * Writes the change of a row.
+     *
+     * @param change The change to write
+     * @param out    A buffer of at least {@link #MAX_INT_LENGTH} chars
+     * @return the number of chars written
+     */
+    int formatChange(int change, char[] out) {
+        return writeInt(change, out, 0);
+    }
+
+    /**
+     * Writes a time as yyyy-MM-dd HH:mm:ss.
+     *
+     * @param millis The time to write, in milliseconds since the epoch
+     * @param out    A buffer of at least {@link #TIME_LENGTH} chars
+     * @return the number of chars written
+     */
+    int formatTime(long millis, char[] out) {
+        long local = millis + mTimeZone.getOffset(millis);
+        long day = floorDiv(local, MILLIS_PER_DAY);
+        if (day != mCachedDay) {
+            formatDate(day, mCachedDate);
+            mCachedDay = day;
+        }
+        System.arraycopy(mCachedDate, 0, out, 0, DATE_LENGTH);
+
+        int secondOfDay = (int) ((local - day * MILLIS_PER_DAY) / 1000);
+        out[10] = ' ';
+        writeTwoDigits(secondOfDay / 3600, out, 11);
+        out[13] = ':';
+        writeTwoDigits(secondOfDay / 60 % 60, out, 14);
+        out[16] = ':';
+        writeTwoDigits(secondOfDay % 60, out, 17);
+        return TIME_LENGTH;
+    }
+
+    /**
+     * Writes the civil date of a day counted from 1970-01-01 as yyyy-MM-dd.
+     */
+    private static void formatDate(long day, char[] out) {
+        // Converts the day number to a proleptic Gregorian date, with years starting in March
+        long z = day + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        writeTwoDigits(year / 100 % 100, out, 0);
+        writeTwoDigits(year % 100, out, 2);
+        out[4] = '-';
+        writeTwoDigits(month, out, 5);
+        out[7] = '-';
+        writeTwoDigits(dayOfMonth, out, 8);
+    }
+
+    private static void writeTwoDigits(int value, char[] out, int offset) {
+        out[offset] = (char) ('0' + value / 10);
+        out[offset + 1] = (char) ('0' + value % 10);
+    }
+
+    /**
+     * Writes an int in decimal.
+     *
+     * @return the number of chars written
+     */
+    private static int writeInt(int value, char[] out, int offset) {
+        long v = value;
+        int pos = offset;
+        if (v < 0) {
+            out[pos++] = '-';
+            v = -v;
+        }
+
+        int digits = 1;
+        for (long rest = v / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            out[i] = (char) ('0' + v % 10);
+            v /= 10;
+        }
+        return pos + digits - offset;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) {
+            q--;
+        }
+        return q;
+    }
+}
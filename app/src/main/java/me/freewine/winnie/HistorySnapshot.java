@@ -0,0 +1,134 @@
+package me.freewine.winnie;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * Immutable copy of a run of history rows, newest first, held in parallel primitive arrays.
+ * <p/>
+ * Snapshots are built off the main thread by {@link HistoryPageLoader}, so the list only ever
+ * reads plain arrays and never touches a cursor while binding or diffing.
+ */
+public final class HistorySnapshot {
+    public static final HistorySnapshot EMPTY =
+            new HistorySnapshot(new long[0], new long[0], new int[0], new int[0], 0, false);
+
+    private final long[] mIds;
+    private final long[] mTimes;
+    private final int[] mCounts;
+    private final int[] mChanges;
+    private final int mSize;
+    private final boolean mHasOlder;
+
+    private HistorySnapshot(long[] ids, long[] times, int[] counts, int[] changes, int size,
+                            boolean hasOlder) {
+        mIds = ids;
+        mTimes = times;
+        mCounts = counts;
+        mChanges = changes;
+        mSize = size;
+        mHasOlder = hasOlder;
+    }
+
+    /**
+     * Copies every row of a cursor. The cursor must contain the _ID, count, change and time
+     * columns and be sorted by _ID, newest first. The arrays of a {@link HistoryArrayCursor},
+     * possibly wrapped by the resolver, are taken over instead of copied.
+     *
+     * @param cursor   The rows to copy; left open, but must not be used afterwards
+     * @param hasOlder Whether the table holds rows older than the last one of the cursor
+     */
+    public static HistorySnapshot fromCursor(Cursor cursor, boolean hasOlder) {
+        Cursor unwrapped = cursor;
+        while (unwrapped instanceof CursorWrapper) {
+            unwrapped = ((CursorWrapper) unwrapped).getWrappedCursor();
+        }
+        if (unwrapped instanceof HistoryArrayCursor) {
+            HistoryArrayCursor arrays = (HistoryArrayCursor) unwrapped;
+            return new HistorySnapshot(arrays.ids(), arrays.times(), arrays.counts(),
+                    arrays.changes(), arrays.getCount(), hasOlder);
+        }
+
+        int size = cursor.getCount();
+        long[] ids = new long[size];
+        long[] times = new long[size];
+        int[] counts = new int[size];
+        int[] changes = new int[size];
+
+        int idIndex = cursor.getColumnIndexOrThrow(HistoryContract._ID);
+        int timeIndex = cursor.getColumnIndexOrThrow(HistoryContract.COLUMN_NAME_TIME);
+        int countIndex = cursor.getColumnIndexOrThrow(HistoryContract.COLUMN_NAME_CNT);
+        int changeIndex = cursor.getColumnIndexOrThrow(HistoryContract.COLUMN_NAME_CHANGE);
+
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext() && i < size; i++) {
+            ids[i] = cursor.getLong(idIndex);
+            times[i] = cursor.getLong(timeIndex);
+            counts[i] = cursor.getInt(countIndex);
+            changes[i] = cursor.getInt(changeIndex);
+        }
+        return new HistorySnapshot(ids, times, counts, changes, size, hasOlder);
+    }
+
+    /**
+     * Returns a snapshot holding the rows of this snapshot followed by those of an older one.
+     *
+     * @param older Rows that are all older than the last row of this snapshot
+     */
+    public HistorySnapshot concat(HistorySnapshot older) {
+        if (older.mSize == 0) {
+            return new HistorySnapshot(mIds, mTimes, mCounts, mChanges, mSize, older.mHasOlder);
+        }
+        int size = mSize + older.mSize;
+        long[] ids = new long[size];
+        long[] times = new long[size];
+        int[] counts = new int[size];
+        int[] changes = new int[size];
+
+        System.arraycopy(mIds, 0, ids, 0, mSize);
+        System.arraycopy(mTimes, 0, times, 0, mSize);
+        System.arraycopy(mCounts, 0, counts, 0, mSize);
+        System.arraycopy(mChanges, 0, changes, 0, mSize);
+        System.arraycopy(older.mIds, 0, ids, mSize, older.mSize);
+        System.arraycopy(older.mTimes, 0, times, mSize, older.mSize);
+        System.arraycopy(older.mCounts, 0, counts, mSize, older.mSize);
+        System.arraycopy(older.mChanges, 0, changes, mSize, older.mSize);
+        return new HistorySnapshot(ids, times, counts, changes, size, older.mHasOlder);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns whether the table holds rows older than the last row of this snapshot.
+     */
+    public boolean hasOlder() {
+        return mHasOlder;
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    public long getTime(int position) {
+        return mTimes[position];
+    }
+
+    public int getCount(int position) {
+        return mCounts[position];
+    }
+
+    public int getChange(int position) {
+        return mChanges[position];
+    }
+
+    /**
+     * Returns whether a row of this snapshot shows the same data as a row of another snapshot.
+     */
+    public boolean sameContents(int position, HistorySnapshot other, int otherPosition) {
+        return mTimes[position] == other.mTimes[otherPosition]
+                && mCounts[position] == other.mCounts[otherPosition]
+                && mChanges[position] == other.mChanges[otherPosition];
+    }
+}
@@ -0,0 +1,425 @@
+package me.freewine.winnie;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import me.freewine.winnie.core.CounterEngine;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group-commit write pipeline for counter taps.
+ * <p/>
+ * Taps are queued in a bounded in-memory queue and a single writer thread drains it, handing
+ * each batch to {@link HistoryContract#METHOD_INCREMENT} so that a burst of taps costs one SQLite
+ * transaction instead of one per tap. The writer waits up to the configured flush latency after
+ * the first queued tap to let a batch build up; {@link #flush(long)} cuts that wait short and
+ * blocks until everything queued so far has been committed, and {@link #flushAsync} cuts it short
+ * without waiting.
+ * <p/>
+ * With a coalescing window configured, taps of the same sign that follow each other within the
+ * window are merged into one tap carrying the summed change and the time of the first, so a
+ * burst becomes a single history row. Merging is exact, see {@link CounterEngine}, but loses the
+ * individual taps from the history, so the app ships with no window.
+ * <p/>
+ * The provider owns the count. Once the queue has drained, the count it returns is reported to
+ * the {@link Listener}, so the screen can correct the count it shows optimistically.
+ */
+public class HistoryWriter {
+    // Identifies log statements issued by this component
+    private static final String LOG_TAG = "HistoryWriter";
+
+    // Maximum number of taps held in memory before enqueue() blocks the caller
+    private static final int QUEUE_CAPACITY = 256;
+
+    // Maximum number of taps committed in a single transaction
+    private static final int MAX_BATCH_SIZE = 64;
+
+    // How long a batch whose commit failed is held before it is tried again, unless flushed
+    private static final long RETRY_DELAY_MS = 1000;
+
+    // Queued by flush() to make the writer commit without waiting for the flush latency
+    private static final Tap FLUSH_MARKER = new Tap(0, 0);
+
+    // Queued by requestCount() to make the writer read the count
+    private static final Tap COUNT_MARKER = new Tap(0, 0);
+
+    /**
+     * Receives the count committed by the provider, on the main thread.
+     */
+    public interface Listener {
+        void onCountCommitted(int count);
+    }
+
+    /**
+     * One queued tap, or a run of taps merged by the coalescing window, or a task queued by
+     * {@link #flushAsync}.
+     */
+    private static final class Tap {
+        int mDelta;
+        final long mTime;
+        // Number of taps merged into this one
+        int mTaps = 1;
+        // Run on the writer thread once the taps queued before it are committed, or null
+        final Runnable mTask;
+
+        Tap(int delta, long time) {
+            mDelta = delta;
+            mTime = time;
+            mTask = null;
+        }
+
+        Tap(Runnable task) {
+            mTime = 0;
+            mTask = task;
+        }
+    }
+
+    private static HistoryWriter sInstance;
+
+    private final ContentResolver mResolver;
+    private final long mFlushLatencyMs;
+    private final long mCoalesceWindowMs;
+    private final BlockingQueue<Tap> mQueue = new ArrayBlockingQueue<Tap>(QUEUE_CAPACITY);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile Listener mListener;
+
+    // Number of taps enqueued and committed so far, and of failed commits, guarded by mLock
+    private final Object mLock = new Object();
+    private long mEnqueued;
+    private long mCommitted;
+    private long mFailures;
+
+    /**
+     * Returns the process-wide writer, creating it on first use.
+     *
+     * @param context Any context; only its application context is retained
+     */
+    public static synchronized HistoryWriter getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new HistoryWriter(appContext.getContentResolver(),
+                    appContext.getResources().getInteger(R.integer.history_flush_latency_ms),
+                    appContext.getResources().getInteger(R.integer.history_coalesce_window_ms));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a writer and starts its writer thread.
+     *
+     * @param resolver       The resolver used to reach {@link HistoryProvider}
+     * @param flushLatencyMs   How long the writer waits for more taps before committing a batch
+     * @param coalesceWindowMs How long after a tap taps of the same sign are merged into it, or 0
+     *                         to record every tap
+     */
+    HistoryWriter(ContentResolver resolver, long flushLatencyMs, long coalesceWindowMs) {
+        mResolver = resolver;
+        mFlushLatencyMs = flushLatencyMs;
+        mCoalesceWindowMs = coalesceWindowMs;
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                drainLoop();
+            }
+        }, LOG_TAG);
+        writer.start();
+    }
+
+    /**
+     * Sets the listener told about committed counts, or null to stop reporting them.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues one tap. Returns immediately unless the queue is full, in which case the caller
+     * waits for the writer to catch up.
+     *
+     * @param delta The change applied by the tap
+     */
+    public void enqueue(int delta) {
+        synchronized (mLock) {
+            mEnqueued++;
+        }
+        putUninterruptibly(new Tap(delta, System.currentTimeMillis()));
+    }
+
+    /**
+     * Asks the writer to read the count from the provider and report it to the listener once
+     * the queue has drained.
+     */
+    public void requestCount() {
+        putUninterruptibly(COUNT_MARKER);
+    }
+
+    /**
+     * Commits everything queued so far and waits until it is durable. Taps whose commit fails
+     * stay queued in memory and are tried again later.
+     *
+     * @param timeoutMs Upper bound on the wait, in milliseconds
+     * @return true if all queued taps were committed before the timeout, false if a commit
+     * failed or the timeout elapsed first
+     */
+    public boolean flush(long timeoutMs) {
+        long target;
+        long failures;
+        synchronized (mLock) {
+            target = mEnqueued;
+            failures = mFailures;
+            if (mCommitted >= target) {
+                return true;
+            }
+        }
+
+        // Wakes the writer up if it is waiting for the flush latency to elapse
+        mQueue.offer(FLUSH_MARKER);
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mLock) {
+            while (mCommitted < target) {
+                if (mFailures != failures) {
+                    Log.w(LOG_TAG, "Flush failed with " + (target - mCommitted) + " taps pending");
+                    return false;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.w(LOG_TAG, "Flush timed out with " + (target - mCommitted) + " taps pending");
+                    return false;
+                }
+                try {
+                    mLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Asks the writer to commit everything queued so far without waiting for the flush latency,
+     * and returns without waiting for the commit.
+     *
+     * @param then Run on the writer thread after the commit, even if it failed, or null
+     */
+    public void flushAsync(Runnable then) {
+        putUninterruptibly(then != null ? new Tap(then) : FLUSH_MARKER);
+    }
+
+    private void putUninterruptibly(Tap tap) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(tap);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        ArrayList<Tap> batch = new ArrayList<Tap>(MAX_BATCH_SIZE);
+        long batchDeadline = 0;
+
+        // Run of taps still accepting taps of the same sign, when coalescing
+        Tap run = null;
+
+        // After a failed commit, the batch is only committed again from this time on, or when
+        // flushed
+        long retryAt = 0;
+
+        while (true) {
+            // Waits for the next tap, but no longer than the open run or the pending batch allow
+            long deadline = Long.MAX_VALUE;
+            if (run != null) {
+                deadline = run.mTime + mCoalesceWindowMs;
+            }
+            if (!batch.isEmpty()) {
+                deadline = Math.min(deadline, batchDeadline);
+            }
+
+            Tap next;
+            try {
+                if (deadline == Long.MAX_VALUE) {
+                    next = mQueue.take();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    next = remaining > 0
+                            ? mQueue.poll(remaining, TimeUnit.MILLISECONDS)
+                            : mQueue.poll();
+                }
+            } catch (InterruptedException e) {
+                // The writer lives as long as the process; keep draining
+                continue;
+            }
+
+            if (next == null) {
+                long now = System.currentTimeMillis();
+                if (run != null && now >= run.mTime + mCoalesceWindowMs) {
+                    if (batch.isEmpty()) {
+                        batchDeadline = now + mFlushLatencyMs;
+                    }
+                    batch.add(run);
+                    run = null;
+                }
+                if (!batch.isEmpty() && (now >= batchDeadline
+                        || (batch.size() >= MAX_BATCH_SIZE && now >= retryAt))) {
+                    if (!commit(batch)) {
+                        retryAt = batchDeadline = now + RETRY_DELAY_MS;
+                    }
+                }
+            } else if (next == FLUSH_MARKER || next == COUNT_MARKER || next.mTask != null) {
+                if (run != null) {
+                    batch.add(run);
+                    run = null;
+                }
+                if (!batch.isEmpty()) {
+                    if (!commit(batch)) {
+                        retryAt = batchDeadline = System.currentTimeMillis() + RETRY_DELAY_MS;
+                    }
+                } else if (next == COUNT_MARKER) {
+                    readCount();
+                }
+                if (next.mTask != null) {
+                    runTask(next.mTask);
+                }
+            } else if (run != null && CounterEngine.canCoalesce(run.mDelta, run.mTime,
+                    next.mDelta, next.mTime, mCoalesceWindowMs)) {
+                run.mDelta += next.mDelta;
+                run.mTaps++;
+            } else {
+                if (run != null) {
+                    if (batch.isEmpty()) {
+                        batchDeadline = System.currentTimeMillis() + mFlushLatencyMs;
+                    }
+                    batch.add(run);
+                    run = null;
+                }
+                if (mCoalesceWindowMs > 0) {
+                    run = next;
+                } else {
+                    if (batch.isEmpty()) {
+                        batchDeadline = System.currentTimeMillis() + mFlushLatencyMs;
+                    }
+                    batch.add(next);
+                }
+                long now = System.currentTimeMillis();
+                if (batch.size() >= MAX_BATCH_SIZE && now >= retryAt) {
+                    if (!commit(batch)) {
+                        retryAt = batchDeadline = now + RETRY_DELAY_MS;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits a batch in one call to the provider and clears it. If the call fails, the batch is
+     * left as it is, so its taps are not lost, and waiting flushes are told.
+     *
+     * @return whether the batch was committed
+     */
+    private boolean commit(ArrayList<Tap> batch) {
+        int size = batch.size();
+        int taps = 0;
+        int[] deltas = new int[size];
+        long[] times = new long[size];
+        for (int i = 0; i < size; i++) {
+            deltas[i] = batch.get(i).mDelta;
+            times[i] = batch.get(i).mTime;
+            taps += batch.get(i).mTaps;
+        }
+
+        Bundle extras = new Bundle();
+        extras.putIntArray(HistoryContract.EXTRA_DELTAS, deltas);
+        extras.putLongArray(HistoryContract.EXTRA_TIMES, times);
+
+        Bundle result = null;
+        try {
+            result = mResolver.call(HistoryContract.CONTENT_URI,
+                    HistoryContract.METHOD_INCREMENT, null, extras);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to commit " + taps + " taps, keeping them for a retry", e);
+        }
+
+        long committed;
+        synchronized (mLock) {
+            if (result == null) {
+                mFailures++;
+                mLock.notifyAll();
+                return false;
+            }
+            mCommitted += taps;
+            committed = mCommitted;
+            mLock.notifyAll();
+        }
+        batch.clear();
+
+        publish(result.getInt(HistoryContract.EXTRA_COUNT), committed);
+        return true;
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Task queued by flushAsync() failed", e);
+        }
+    }
+
+    private void readCount() {
+        try {
+            Bundle result = mResolver.call(HistoryContract.CONTENT_URI,
+                    HistoryContract.METHOD_GET_COUNT, null, null);
+            long committed;
+            synchronized (mLock) {
+                committed = mCommitted;
+            }
+            if (result != null) {
+                publish(result.getInt(HistoryContract.EXTRA_COUNT), committed);
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to read the count", e);
+        }
+    }
+
+    /**
+     * Reports a committed count to the listener, unless taps were queued after it was committed,
+     * in which case the count shown already accounts for them and a newer one will follow.
+     *
+     * @param count     The committed count
+     * @param committed The number of taps committed when the count was read
+     */
+    private void publish(final int count, final long committed) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (mEnqueued != committed) {
+                        return;
+                    }
+                }
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onCountCommitted(count);
+                }
+            }
+        });
+    }
+}
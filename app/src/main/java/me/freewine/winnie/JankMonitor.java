@@ -0,0 +1,217 @@
+package me.freewine.winnie;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+
+/**
+ * Frame timing monitor of one screen, in debug and instrumented builds.
+ * <p/>
+ * While started, a Choreographer frame callback records the interval between consecutive frames
+ * into a {@link LatencyHistogram}. A frame that comes more than half a refresh period late has
+ * dropped frames before it; it is put down to the operation that kept the main thread busiest
+ * since the previous frame, among the operations timed with {@link #begin} and {@link #end}, or
+ * to {@link #OTHER} if none ran. {@link #stop} logs a summary of the session and writes it to a
+ * JSON file in {@link #REPORT_DIR} of the files directory, keeping the newest
+ * {@link #MAX_REPORTS}. Main thread only.
+ */
+final class JankMonitor implements Choreographer.FrameCallback {
+    // Identifies log statements issued by this component
+    private static final String LOG_TAG = "JankMonitor";
+
+    static final String REPORT_DIR = "frame-stats";
+    private static final int MAX_REPORTS = 50;
+
+    // Operations long frames are put down to
+    static final int OP_TAP = 0;
+    static final int OP_BIND_VIEW = 1;
+    static final int OP_LOADER_SWAP = 2;
+    private static final int OTHER = 3;
+    private static final String[] OPERATION_NAMES = {"tap", "bind_view", "loader_swap", "other"};
+
+    private final String mScreen;
+    private final boolean mEnabled = BuildConfig.DEBUG;
+
+    private Context mContext;
+    private boolean mStarted;
+    private long mStartUptime;
+    private long mPeriodNanos;
+    // Time of the previous frame, 0 until the first frame of a session
+    private long mLastFrameNanos;
+
+    private LatencyHistogram mFrames = new LatencyHistogram();
+    private long mJankyFrames;
+    private long mDroppedFrames;
+
+    // Per operation: main-thread time since the previous frame, then totals for the session
+    private final long[] mPendingNanos = new long[OPERATION_NAMES.length];
+    private final long[] mCalls = new long[OPERATION_NAMES.length];
+    private final long[] mTotalNanos = new long[OPERATION_NAMES.length];
+    private final long[] mJankyFramesBy = new long[OPERATION_NAMES.length];
+
+    /**
+     * @param screen Names the screen in the summary
+     */
+    JankMonitor(String screen) {
+        mScreen = screen;
+    }
+
+    /**
+     * Starts a session, normally from onResume().
+     *
+     * @param activity The activity showing the screen
+     */
+    void start(Activity activity) {
+        if (!mEnabled || mStarted) {
+            return;
+        }
+        mContext = activity.getApplicationContext();
+        float refreshRate = activity.getWindowManager().getDefaultDisplay().getRefreshRate();
+        mPeriodNanos = (long) (1000000000L / (refreshRate > 0 ? refreshRate : 60));
+        mStartUptime = SystemClock.uptimeMillis();
+        mLastFrameNanos = 0;
+        mStarted = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Ends the session, normally from onPause(), then logs and writes its summary.
+     */
+    void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+
+        final JSONObject summary;
+        try {
+            summary = summarize();
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Cannot build the frame summary", e);
+            return;
+        }
+        Log.i(LOG_TAG, summary.toString());
+        reset();
+
+        final File dir = new File(mContext.getFilesDir(), REPORT_DIR);
+        final String name = "frames-" + System.currentTimeMillis() + "-" + mScreen + ".json";
+        // Written off the main thread, so the summary does not cause the jank it measures
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ReportFiles.write(dir, name, summary.toString(2), MAX_REPORTS);
+                } catch (JSONException e) {
+                    Log.e(LOG_TAG, "Cannot format the frame summary", e);
+                }
+            }
+        }, LOG_TAG).start();
+    }
+
+    /**
+     * Returns the start time of an operation, to pass to {@link #end}.
+     */
+    long begin() {
+        return mStarted ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the main-thread time of an operation.
+     *
+     * @param operation One of the OP_ values
+     * @param start     The value returned by {@link #begin} when the operation started
+     */
+    void end(int operation, long start) {
+        if (!mStarted || start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        mPendingNanos[operation] += nanos;
+        mCalls[operation]++;
+        mTotalNanos[operation] += nanos;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mStarted) {
+            return;
+        }
+        if (mLastFrameNanos != 0) {
+            long interval = frameTimeNanos - mLastFrameNanos;
+            mFrames.record(interval, 0);
+            // A frame on time follows the previous one by a period; each period more is a frame
+            // that was never drawn
+            long dropped = (interval + mPeriodNanos / 2) / mPeriodNanos - 1;
+            if (dropped > 0) {
+                mJankyFrames++;
+                mDroppedFrames += dropped;
+                mJankyFramesBy[busiestOperation()]++;
+            }
+        }
+        for (int i = 0; i < mPendingNanos.length; i++) {
+            mPendingNanos[i] = 0;
+        }
+        mLastFrameNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private int busiestOperation() {
+        int busiest = OTHER;
+        long most = 0;
+        for (int i = 0; i < OTHER; i++) {
+            if (mPendingNanos[i] > most) {
+                most = mPendingNanos[i];
+                busiest = i;
+            }
+        }
+        return busiest;
+    }
+
+    private JSONObject summarize() throws JSONException {
+        Bundle frames = mFrames.snapshot();
+        JSONObject summary = new JSONObject();
+        summary.put("screen", mScreen);
+        summary.put("duration_ms", SystemClock.uptimeMillis() - mStartUptime);
+        summary.put("refresh_period_us", mPeriodNanos / 1000);
+        summary.put("frames", frames.getLong(HistoryContract.METRIC_CALLS));
+        summary.put("janky_frames", mJankyFrames);
+        summary.put("dropped_frames", mDroppedFrames);
+        summary.put("frame_p50_us", frames.getLong(HistoryContract.METRIC_P50_US));
+        summary.put("frame_p90_us", frames.getLong(HistoryContract.METRIC_P90_US));
+        summary.put("frame_p99_us", frames.getLong(HistoryContract.METRIC_P99_US));
+        summary.put("frame_max_us", frames.getLong(HistoryContract.METRIC_MAX_US));
+
+        JSONObject operations = new JSONObject();
+        for (int i = 0; i < OPERATION_NAMES.length; i++) {
+            JSONObject operation = new JSONObject();
+            if (i != OTHER) {
+                operation.put("calls", mCalls[i]);
+                operation.put("total_us", mTotalNanos[i] / 1000);
+            }
+            operation.put("janky_frames", mJankyFramesBy[i]);
+            operations.put(OPERATION_NAMES[i], operation);
+        }
+        summary.put("operations", operations);
+        return summary;
+    }
+
+    private void reset() {
+        mFrames = new LatencyHistogram();
+        mJankyFrames = 0;
+        mDroppedFrames = 0;
+        for (int i = 0; i < OPERATION_NAMES.length; i++) {
+            mPendingNanos[i] = 0;
+            mCalls[i] = 0;
+            mTotalNanos[i] = 0;
+            mJankyFramesBy[i] = 0;
+        }
+    }
+}
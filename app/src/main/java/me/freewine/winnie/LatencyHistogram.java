@@ -0,0 +1,134 @@
+package me.freewine.winnie;
+
+import android.os.Bundle;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of the latencies of one kind of operation, with the number of rows they
+ * touched.
+ * <p/>
+ * Latencies are counted in microseconds in log-linear buckets: every power of two is split into
+ * {@link #SUB_BUCKETS} equal buckets, so each bucket is at most 12.5% wide whatever the scale,
+ * from 1 us to about 12 days, in {@link #BUCKETS} counters. Recording is a few atomic increments
+ * and never blocks, so it can stay on in release builds.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Latencies at or above 2^MAX_EXPONENT us all land in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mRows = new AtomicLong();
+    private final AtomicLong mTotalUs = new AtomicLong();
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    /**
+     * Records one operation.
+     *
+     * @param nanos How long it took, in nanoseconds
+     * @param rows  The number of rows it read or wrote
+     */
+    void record(long nanos, int rows) {
+        long us = Math.max(0, nanos / 1000);
+        mBuckets.incrementAndGet(bucketOf(us));
+        mCalls.incrementAndGet();
+        mRows.addAndGet(rows);
+        mTotalUs.addAndGet(us);
+        long max;
+        do {
+            max = mMaxUs.get();
+        } while (us > max && !mMaxUs.compareAndSet(max, us));
+    }
+
+    /**
+     * Returns the bucket of a latency in microseconds.
+     */
+    static int bucketOf(long us) {
+        if (us < SUB_BUCKETS) {
+            return (int) us;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(us);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (us >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the lowest latency, in microseconds, that falls in a bucket.
+     */
+    static long lowestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int group = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (group - 1);
+    }
+
+    /**
+     * Writes a snapshot of the histogram, see the METRIC_ keys of {@link HistoryContract}.
+     * Operations recorded while the snapshot is taken may be counted in some values only.
+     */
+    Bundle snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        int used = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+            if (counts[i] > 0) {
+                used++;
+            }
+        }
+
+        // Only the buckets holding latencies are sent
+        long[] lowest = new long[used];
+        long[] usedCounts = new long[used];
+        for (int i = 0, j = 0; i < BUCKETS; i++) {
+            if (counts[i] > 0) {
+                lowest[j] = lowestOf(i);
+                usedCounts[j++] = counts[i];
+            }
+        }
+
+        long max = mMaxUs.get();
+        Bundle snapshot = new Bundle();
+        snapshot.putLong(HistoryContract.METRIC_CALLS, mCalls.get());
+        snapshot.putLong(HistoryContract.METRIC_ROWS, mRows.get());
+        snapshot.putLong(HistoryContract.METRIC_TOTAL_US, mTotalUs.get());
+        snapshot.putLong(HistoryContract.METRIC_MAX_US, max);
+        snapshot.putLong(HistoryContract.METRIC_P50_US, percentile(counts, total, 50, max));
+        snapshot.putLong(HistoryContract.METRIC_P90_US, percentile(counts, total, 90, max));
+        snapshot.putLong(HistoryContract.METRIC_P99_US, percentile(counts, total, 99, max));
+        snapshot.putLongArray(HistoryContract.METRIC_BUCKET_LOWEST_US, lowest);
+        snapshot.putLongArray(HistoryContract.METRIC_BUCKET_COUNTS, usedCounts);
+        return snapshot;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding a percentile, capped at the largest latency
+     * recorded, or 0 if nothing was recorded.
+     */
+    private static long percentile(long[] counts, long total, int percent, long max) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (total * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long upper = i + 1 < BUCKETS ? lowestOf(i + 1) - 1 : max;
+                return Math.min(upper, max);
+            }
+        }
+        return max;
+    }
+}
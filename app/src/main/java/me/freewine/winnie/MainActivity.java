@@ -2,10 +2,7 @@ package me.freewine.winnie;
 
 import android.app.Activity;
 import android.app.Fragment;
-import android.content.ContentValues;
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.media.AudioManager;
 import android.media.SoundPool;
@@ -18,6 +15,7 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.TextView;
+import me.freewine.winnie.core.CounterEngine;
 
 import java.util.HashMap;
 
@@ -27,6 +25,8 @@ public class MainActivity extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.mark(StartupTrace.MARK_ACTIVITY_CREATED);
+        StartupTrace.watchFirstFrame(this);
         setContentView(R.layout.activity_main);
         if (savedInstanceState == null) {
             getFragmentManager().beginTransaction()
@@ -35,6 +35,12 @@ public class MainActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        StartupTrace.mark(StartupTrace.MARK_ACTIVITY_RESUMED);
+    }
+
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -63,7 +69,32 @@ public class MainActivity extends Activity {
      */
     public static class PlaceholderFragment extends Fragment {
         private TextView cntView;
-        private SharedPreferences sharedPref;
+        private Button plusBtn;
+        private Button minusBtn;
+        private HistoryWriter writer;
+        private CounterJournal journal;
+
+        // Times the frames of the screen and the tap handlers
+        private final JankMonitor mJankMonitor = new JankMonitor("main");
+
+        // Count shown on screen; updated on every tap and corrected by the provider
+        private int mCount;
+        // Whether mCount holds a count yet, from the journal or the provider
+        private boolean mCountKnown;
+
+        // Takes the journal once its file has been mapped off the main thread
+        private final CounterJournal.Callback mJournalCallback = new CounterJournal.Callback() {
+            @Override
+            public void onJournalReady(CounterJournal ready) {
+                journal = ready;
+                if (mCountKnown) {
+                    // The provider answered first; its count is the newer one
+                    journal.write(mCount);
+                } else if (journal.read() != CounterJournal.NO_COUNT) {
+                    showCount(journal.read());
+                }
+            }
+        };
 
         private SoundPool soundPool;
         private HashMap<Integer, Integer> map = new HashMap<Integer, Integer>();
@@ -84,61 +115,53 @@ public class MainActivity extends Activity {
             map.put(2, soundPool.load(getActivity(), R.raw.minus, 1));
             map.put(3, soundPool.load(getActivity(), R.raw.over, 1));
 
-            sharedPref = getActivity().getPreferences(Context.MODE_PRIVATE);
-            int cnt = sharedPref.getInt(getString(R.string.saved_cnt), 150);
-
+            writer = HistoryWriter.getInstance(getActivity());
             cntView = (TextView) rootView.findViewById(R.id.nowCount);
-            cntView.setText(String.valueOf(cnt));
 
-            Button plusBtn = (Button) rootView.findViewById(R.id.plus50);
+            // 没有缓存的计数时，等待历史记录恢复完成再接受操作
+            plusBtn = (Button) rootView.findViewById(R.id.plus50);
+            plusBtn.setEnabled(false);
             plusBtn.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    int cnt = Integer.valueOf(cntView.getText().toString());
-                    cnt += 50;
+                    long start = mJankMonitor.begin();
+                    mCount = CounterEngine.apply(mCount, 50);
                     cntView.setTextColor(Color.WHITE);
-                    cntView.setText(String.valueOf(cnt));
+                    cntView.setText(String.valueOf(mCount));
+                    saveCount();
 
                     //播放声音
                     soundPool.play(map.get(1), 1, 1, 1, 0, 1);
 
                     //将操作记录保存到数据库
-                    InsertToDB(cnt, 50);
-
-                    //保存计数
-                    SharedPreferences.Editor editor = sharedPref.edit();
-                    editor.putInt(getString(R.string.saved_cnt), cnt);
-                    editor.commit();
+                    InsertToDB(50);
+                    mJankMonitor.end(JankMonitor.OP_TAP, start);
                 }
             });
 
-            Button minusBtn = (Button) rootView.findViewById(R.id.minus50);
+            minusBtn = (Button) rootView.findViewById(R.id.minus50);
+            minusBtn.setEnabled(false);
             minusBtn.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    int cnt = Integer.valueOf(cntView.getText().toString());
-                    cnt -= 50;
-                    if (cnt < 0) {
-                        cnt = 0;
+                    long start = mJankMonitor.begin();
+                    boolean clamped = mCount < 50;
+                    mCount = CounterEngine.apply(mCount, -50);
+                    if (clamped) {
                         cntView.setTextColor(getResources().getColor(R.color.pink_a400));
 
                         //播放声音
                         soundPool.play(map.get(3), 1, 1, 1, 0, 1);
                     } else {
-                        cntView.setText(String.valueOf(cnt));
-
-                        //播放声音
                         //播放声音
                         soundPool.play(map.get(2), 1, 1, 1, 0, 1);
                     }
+                    cntView.setText(String.valueOf(mCount));
+                    saveCount();
 
                     //将操作记录保存到数据库
-                    InsertToDB(cnt, -50);
-
-                    //保存计数
-                    SharedPreferences.Editor editor = sharedPref.edit();
-                    editor.putInt(getString(R.string.saved_cnt), cnt);
-                    editor.commit();
+                    InsertToDB(-50);
+                    mJankMonitor.end(JankMonitor.OP_TAP, start);
                 }
             });
 
@@ -150,11 +173,65 @@ public class MainActivity extends Activity {
                     startActivity(it);
                 }
             });
+
+            // Shows the cached count as soon as the journal is mapped, usually at once
+            CounterJournal.load(getActivity(), mJournalCallback);
             return rootView;
         }
 
+        /**
+         * Shows a count known to be current and accepts taps from then on.
+         */
+        private void showCount(int count) {
+            mCount = count;
+            mCountKnown = true;
+            cntView.setText(String.valueOf(count));
+            plusBtn.setEnabled(true);
+            minusBtn.setEnabled(true);
+        }
+
+        // Records the count shown in the journal, once it has been mapped
+        private void saveCount() {
+            if (journal != null) {
+                journal.write(mCount);
+            }
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            // 以数据库中的计数为准
+            writer.setListener(new HistoryWriter.Listener() {
+                @Override
+                public void onCountCommitted(int count) {
+                    showCount(count);
+                    saveCount();
+                }
+            });
+            writer.requestCount();
+            mJankMonitor.start(getActivity());
+        }
+
+        @Override
+        public void onPause() {
+            mJankMonitor.stop();
+            // 离开页面前把队列中的记录写入数据库
+            writer.setListener(null);
+            // The journal already holds the count shown, so neither the commit nor writing the
+            // journal through to storage is waited for here; both happen on the writer thread
+            final CounterJournal pausedJournal = journal;
+            writer.flushAsync(pausedJournal == null ? null : new Runnable() {
+                @Override
+                public void run() {
+                    pausedJournal.force();
+                }
+            });
+            super.onPause();
+        }
+
         @Override
         public void onDestroyView() {
+            CounterJournal.cancel(mJournalCallback);
             // 销毁的时候释放SoundPool资源
             if (soundPool != null) {
                 soundPool.release();
@@ -164,15 +241,9 @@ public class MainActivity extends Activity {
         }
 
         //添加数据库
-        void InsertToDB(int cnt, int change) {
-            // Creates another ContentValues for storing date information
-            ContentValues values = new ContentValues();
-            // Adds the URL's last modified date to the ContentValues
-            values.put(HistoryContract.COLUMN_NAME_CNT, cnt);
-            values.put(HistoryContract.COLUMN_NAME_CHANGE, change);
-            values.put(HistoryContract.COLUMN_NAME_TIME, System.currentTimeMillis());
-
-            getActivity().getContentResolver().insert(HistoryContract.HISTORY_TABLE_CONTENTURI, values);
+        void InsertToDB(int change) {
+            // Hands the tap to the background writer; the provider applies it to the stored count
+            writer.enqueue(change);
         }
     }
 }
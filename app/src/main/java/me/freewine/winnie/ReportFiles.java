@@ -0,0 +1,63 @@
+package me.freewine.winnie;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes the report files of the startup trace of the instrumented build and of
+ * {@link JankMonitor}. Does disk I/O; call off the main thread.
+ */
+final class ReportFiles {
+    // Identifies log statements issued by this component
+    private static final String LOG_TAG = "ReportFiles";
+
+    private ReportFiles() {
+    }
+
+    /**
+     * Writes a report, then deletes the oldest reports of its directory beyond a maximum. Failures
+     * are logged, never thrown; a lost report is not worth a crash.
+     *
+     * @param dir      The directory of the reports, created if needed
+     * @param name     The name of the report; names must sort from oldest to newest
+     * @param text     The contents of the report
+     * @param maxFiles The number of reports kept in the directory
+     */
+    static void write(File dir, String name, String text, int maxFiles) {
+        File file = new File(dir, name);
+        FileOutputStream out = null;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            out = new FileOutputStream(file);
+            out.write(text.getBytes("UTF-8"));
+            Log.i(LOG_TAG, "Wrote " + file);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot write " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Cannot close " + file, e);
+                }
+            }
+        }
+
+        String[] names = dir.list();
+        if (names == null || names.length <= maxFiles) {
+            return;
+        }
+        Arrays.sort(names);
+        for (int i = 0; i < names.length - maxFiles; i++) {
+            if (!new File(dir, names[i]).delete()) {
+                Log.w(LOG_TAG, "Cannot delete " + names[i]);
+            }
+        }
+    }
+}
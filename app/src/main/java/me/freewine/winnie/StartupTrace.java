@@ -0,0 +1,63 @@
+package me.freewine.winnie;
+
+import android.app.Activity;
+
+/**
+ * Hooks of the cold start trace. They do nothing until a {@link Tracer} is installed, which
+ * only the instrumented build type does, from the application in src/instrumented; the tracer
+ * and its StrictMode collector are not part of other builds at all.
+ */
+final class StartupTrace {
+    // Names of the marks, see mark()
+    static final String MARK_PROVIDERS_CREATED = "providers_created";
+    static final String MARK_APPLICATION_CREATED = "application_created";
+    static final String MARK_ACTIVITY_CREATED = "activity_created";
+    static final String MARK_ACTIVITY_RESUMED = "activity_resumed";
+    static final String MARK_FIRST_FRAME = "first_frame";
+
+    /**
+     * Records the startup, see {@link StartupTrace#mark} and {@link StartupTrace#watchFirstFrame}.
+     */
+    interface Tracer {
+        void mark(String name);
+
+        void watchFirstFrame(Activity activity);
+    }
+
+    private static volatile Tracer sTracer;
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Installs the tracer the hooks report to. Called as the application is attached, before
+     * the content providers are created, so that their main-thread work is traced too.
+     */
+    static void install(Tracer tracer) {
+        sTracer = tracer;
+    }
+
+    /**
+     * Records the time of a startup event, if the first frame has not been drawn yet.
+     *
+     * @param name One of the MARK_ names
+     */
+    static void mark(String name) {
+        Tracer tracer = sTracer;
+        if (tracer != null) {
+            tracer.mark(name);
+        }
+    }
+
+    /**
+     * Marks the end of the startup when the activity has drawn its first frame.
+     *
+     * @param activity The activity being started, from its onCreate()
+     */
+    static void watchFirstFrame(Activity activity) {
+        Tracer tracer = sTracer;
+        if (tracer != null) {
+            tracer.watchFirstFrame(activity);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package me.freewine.winnie;
+
+import android.app.Application;
+
+/**
+ * Application of Winnie. Starts mapping the counter journal off the main thread, and marks the
+ * startup for the trace of the instrumented build type, see {@link StartupTrace}.
+ */
+public class WinnieApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        // Content providers, HistoryProvider included, are created between attach and onCreate
+        StartupTrace.mark(StartupTrace.MARK_PROVIDERS_CREATED);
+        super.onCreate();
+        CounterJournal.preload(this);
+        StartupTrace.mark(StartupTrace.MARK_APPLICATION_CREATED);
+    }
+}
@@ -0,0 +1,126 @@
+package me.freewine.winnie;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import me.freewine.winnie.core.CounterEngine;
+import me.freewine.winnie.core.HistorySchema;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the count of {@link HistoryCheckpoints} includes the rows of an import, even when
+ * an increment lands between two of its chunks and writes a checkpoint.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class HistoryImporterTest {
+    private static final long START = 1104537600000L;
+
+    private SQLiteDatabase mDb;
+    private HistoryCheckpoints mCheckpoints;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(HistorySchema.SQL_CREATE_ENTRIES);
+        mDb.execSQL(HistorySchema.SQL_CREATE_DAILY);
+        mDb.execSQL(HistorySchema.SQL_CREATE_HOURLY);
+        mDb.execSQL(HistorySchema.SQL_CREATE_ROLLUP_TRIGGER);
+        HistoryArchive.create(mDb);
+        HistoryCheckpoints.create(mDb);
+        mCheckpoints = new HistoryCheckpoints();
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void incrementBetweenChunksCountsImportedRows() throws IOException {
+        // One full chunk, then a second one with a gap left for the increment's _ID
+        int rows = HistoryImporter.BATCH_ROWS + 1;
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        csv.write(HistoryExporter.CSV_HEADER);
+        StringBuilder line = new StringBuilder();
+        for (int i = 1; i <= rows; i++) {
+            long id = i < rows ? i : 2L * rows;
+            line.setLength(0);
+            line.append(id).append(',').append(CounterEngine.INITIAL_COUNT + i).append(",1,")
+                    .append(START + i).append('\n');
+            csv.write(line.toString().getBytes(Charset.forName("US-ASCII")));
+        }
+
+        // The provider has already recovered the count, as after any read
+        assertEquals(CounterEngine.INITIAL_COUNT, mCheckpoints.getCount(mDb));
+
+        HistoryImporter importer = new HistoryImporter(mDb, mCheckpoints);
+        importer.run(new ByteArrayInputStream(csv.toByteArray()), false,
+                new HistoryImporter.ProgressListener() {
+                    @Override
+                    public void onProgress(long rowsRead, long rowsImported) {
+                        if (rowsRead == HistoryImporter.BATCH_ROWS) {
+                            increment(1);
+                        }
+                    }
+                });
+
+        int expected = replay();
+        assertEquals(CounterEngine.INITIAL_COUNT + rows + 1, expected);
+        assertEquals(expected, mCheckpoints.getCount(mDb));
+        // A fresh recovery starts from the newest checkpoint, which must include the import
+        assertEquals(expected, new HistoryCheckpoints().getCount(mDb));
+    }
+
+    /**
+     * Appends one row as {@link HistoryContract#METHOD_INCREMENT} does.
+     */
+    private void increment(int change) {
+        synchronized (mCheckpoints) {
+            SQLiteStatement statement = mDb.compileStatement(HistorySchema.SQL_INSERT_ENTRY);
+            mDb.beginTransaction();
+            try {
+                int count = mCheckpoints.getCount(mDb);
+                statement.bindNull(1);
+                statement.bindLong(2, CounterEngine.apply(count, change));
+                statement.bindLong(3, change);
+                statement.bindLong(4, START);
+                mCheckpoints.append(mDb, statement.executeInsert(), change);
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+                statement.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the count replayed from every history row.
+     */
+    private int replay() {
+        int count = CounterEngine.INITIAL_COUNT;
+        Cursor changes = mDb.rawQuery("SELECT " + HistoryContract.COLUMN_NAME_CHANGE + " FROM " +
+                HistoryContract.TABLE_NAME + " ORDER BY " + HistoryContract._ID, null);
+        try {
+            while (changes.moveToNext()) {
+                count = CounterEngine.apply(count, changes.getInt(0));
+            }
+        } finally {
+            changes.close();
+        }
+        return count;
+    }
+}
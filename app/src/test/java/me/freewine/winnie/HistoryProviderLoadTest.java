@@ -0,0 +1,207 @@
+package me.freewine.winnie;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Load test of {@link HistoryProvider} on the JVM, against the real SQLite of Robolectric.
+ * <p/>
+ * Writes a synthetic history of {@link #DEFAULT_EVENTS} taps, or -PloadTestEvents, through
+ * {@link HistoryContract#METHOD_INCREMENT} in batches the size of those of
+ * {@link HistoryWriter}, then times the page queries of the history screen: the newest page,
+ * which repeats and so is mostly served by the page cache, and pages at a random depth or of a
+ * random day, which mostly reach SQLite. The results are
+ * written as one JSON object to build/loadtest/history-provider.json and printed on one line.
+ * The seed, the start time and the queries are fixed, and the background maintenance of the
+ * provider finishes before the first insert, so results of different builds can be compared;
+ * only the timings should differ.
+ * <p/>
+ * Skipped unless run with -PloadTest, as it takes minutes:
+ * ./gradlew :app:testDebug -PloadTest -PloadTestEvents=2000000
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class HistoryProviderLoadTest {
+    private static final int DEFAULT_EVENTS = 1000000;
+
+    private static final long SEED = 20150301L;
+    // 2005-01-01T00:00Z, so the history ends before the present for any size up to ~10^7 taps
+    private static final long START = 1104537600000L;
+
+    // Taps per increment call, the largest batch HistoryWriter commits
+    private static final int BATCH_SIZE = 64;
+
+    // Queries timed per kind, after as many untimed ones to warm up
+    private static final int QUERIES = 1000;
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private static final String[] PROJECTION = HistoryArchive.COLUMNS;
+
+    private HistoryProvider mProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean("winnie.loadtest"));
+        RuntimeEnvironment.application.deleteDatabase(HistoryContract.DATABASE_NAME);
+
+        mProvider = new HistoryProvider();
+        mProvider.attachInfo(RuntimeEnvironment.application, null);
+        ShadowContentResolver.registerProvider(HistoryContract.AUTHORITY, mProvider);
+
+        // The maintenance started by onCreate() is the only time rows are archived. Once it has
+        // run over the empty database, retention cannot move the synthetic rows, all older than
+        // the retention period, out of the table while the test runs
+        mProvider.awaitBackgroundWork();
+    }
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+    }
+
+    @Test
+    public void loadHistory() throws IOException {
+        int events = Integer.getInteger("winnie.loadtest.events", DEFAULT_EVENTS);
+
+        // Inserts
+        SyntheticTaps taps = new SyntheticTaps(SEED, START);
+        int[] deltas = new int[BATCH_SIZE];
+        long[] times = new long[BATCH_SIZE];
+        long insertStart = System.nanoTime();
+        for (int written = 0; written < events; ) {
+            int size = Math.min(BATCH_SIZE, events - written);
+            if (size != deltas.length) {
+                deltas = new int[size];
+                times = new long[size];
+            }
+            for (int i = 0; i < size; i++) {
+                times[i] = taps.nextTime();
+                deltas[i] = taps.nextChange();
+            }
+            Bundle extras = new Bundle();
+            extras.putIntArray(HistoryContract.EXTRA_DELTAS, deltas);
+            extras.putLongArray(HistoryContract.EXTRA_TIMES, times);
+            mProvider.call(HistoryContract.METHOD_INCREMENT, null, extras);
+            written += size;
+        }
+        long insertNanos = System.nanoTime() - insertStart;
+        assertEquals(events, countRows());
+
+        // Queries, each timed with the reading of all its rows
+        Random random = new Random(SEED);
+        long first = START;
+        long last = taps.time();
+        long[] newest = new long[QUERIES];
+        long[] deep = new long[QUERIES];
+        long[] day = new long[QUERIES];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < QUERIES; i++) {
+                newest[i] = timeQuery(HistoryContract.buildAllUri(HistoryContract.DEFAULT_PAGE_SIZE));
+                long before = 1 + random.nextInt(events);
+                deep[i] = timeQuery(
+                        HistoryContract.buildAllUri(before, HistoryContract.DEFAULT_PAGE_SIZE));
+                long since = first + (long) (random.nextDouble() * (last - first));
+                day[i] = timeQuery(HistoryContract.withTimeRange(
+                        HistoryContract.buildAllUri(HistoryContract.DEFAULT_PAGE_SIZE),
+                        since, since + MILLIS_PER_DAY));
+            }
+        }
+
+        File database = RuntimeEnvironment.application.getDatabasePath(
+                HistoryContract.DATABASE_NAME);
+        File wal = new File(database.getPath() + "-wal");
+
+        String report = String.format(Locale.US,
+                "{\"events\":%d,\"seed\":%d,\"batch\":%d," +
+                        "\"insert_seconds\":%.3f,\"insert_events_per_second\":%.1f," +
+                        "\"newest_page_p50_us\":%d,\"newest_page_p99_us\":%d," +
+                        "\"deep_page_p50_us\":%d,\"deep_page_p99_us\":%d," +
+                        "\"day_page_p50_us\":%d,\"day_page_p99_us\":%d," +
+                        "\"database_bytes\":%d,\"wal_bytes\":%d}",
+                events, SEED, BATCH_SIZE,
+                insertNanos / 1e9, events / (insertNanos / 1e9),
+                percentile(newest, 50), percentile(newest, 99),
+                percentile(deep, 50), percentile(deep, 99),
+                percentile(day, 50), percentile(day, 99),
+                database.length(), wal.length());
+
+        File out = new File("build/loadtest/history-provider.json");
+        out.getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+        try {
+            writer.write(report);
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+        System.out.println(report);
+    }
+
+    /**
+     * Runs a page query and reads every row of it.
+     *
+     * @return the time taken, in nanoseconds
+     */
+    private long timeQuery(Uri uri) {
+        long start = System.nanoTime();
+        Cursor cursor = mProvider.query(uri, PROJECTION, null, null, null);
+        try {
+            long sum = 0;
+            while (cursor.moveToNext()) {
+                sum += cursor.getLong(0);
+            }
+            if (sum < 0) {
+                throw new AssertionError("Negative _ID in " + uri);
+            }
+        } finally {
+            cursor.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private int countRows() {
+        Cursor cursor = mProvider.query(HistoryContract.HISTORY_TABLE_CONTENTURI,
+                new String[]{"count(*)"}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns a percentile of timings, in microseconds.
+     */
+    private static long percentile(long[] nanos, int percent) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000;
+    }
+}
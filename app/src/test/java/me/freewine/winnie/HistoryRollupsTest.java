@@ -0,0 +1,139 @@
+package me.freewine.winnie;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import me.freewine.winnie.core.HistorySchema;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that recounting the rollups after a downgrade and an upgrade includes the rows that
+ * had been moved to the archive.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class HistoryRollupsTest {
+    // 2005-01-01T00:00Z
+    private static final long START = 1104537600000L;
+    private static final long MILLIS_PER_HOUR = 60L * 60 * 1000;
+
+    // Enough rows for several archived blocks and several backfill chunks of the table
+    private static final int ROWS = 3 * HistoryArchive.BLOCK_ROWS + HistoryMigrations.CHUNK_SIZE;
+    private static final int ARCHIVED_ROWS = 3 * HistoryArchive.BLOCK_ROWS;
+
+    private SQLiteDatabase mDb;
+    private HistoryMigrations mMigrations;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mMigrations = new HistoryMigrations();
+        upgrade(0);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void downgradeAndUpgradeKeepsArchivedRows() {
+        append(ROWS);
+        // Rows are three hours apart, so the cutoff archives exactly the oldest ARCHIVED_ROWS
+        HistoryArchive.archive(mDb, START + ARCHIVED_ROWS * 3 * MILLIS_PER_HOUR);
+        assertEquals(ARCHIVED_ROWS, HistoryArchive.newestArchivedId(mDb));
+
+        List<String> daily = read(HistoryContract.DAILY_TABLE_NAME);
+        List<String> hourly = read(HistoryContract.HOURLY_TABLE_NAME);
+        assertEquals(ROWS, taps(HistoryContract.DAILY_TABLE_NAME));
+
+        mDb.beginTransaction();
+        try {
+            mMigrations.downgrade(mDb, HistoryMigrations.VERSION_TIME_INDEX);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        upgrade(HistoryMigrations.VERSION_TIME_INDEX);
+
+        assertEquals(daily, read(HistoryContract.DAILY_TABLE_NAME));
+        assertEquals(hourly, read(HistoryContract.HOURLY_TABLE_NAME));
+    }
+
+    private void upgrade(int oldVersion) {
+        mDb.beginTransaction();
+        try {
+            mMigrations.upgrade(mDb, oldVersion, HistoryContract.DATABASE_VERSION);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        mMigrations.load(mDb);
+        mMigrations.runPendingBackfills(mDb);
+    }
+
+    /**
+     * Appends rows alternating +2 and -1 as increments do, checkpointing them so that they can
+     * be archived.
+     */
+    private void append(int rows) {
+        HistoryCheckpoints checkpoints = new HistoryCheckpoints();
+        SQLiteStatement statement = mDb.compileStatement(HistorySchema.SQL_INSERT_ENTRY);
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                int change = i % 2 == 0 ? 2 : -1;
+                statement.bindNull(1);
+                statement.bindLong(2, checkpoints.getCount(mDb) + change);
+                statement.bindLong(3, change);
+                statement.bindLong(4, START + i * 3 * MILLIS_PER_HOUR);
+                checkpoints.append(mDb, statement.executeInsert(), change);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            statement.close();
+        }
+    }
+
+    private List<String> read(String table) {
+        List<String> rows = new ArrayList<String>();
+        Cursor cursor = mDb.query(table, new String[]{
+                HistoryContract.COLUMN_NAME_PERIOD,
+                HistoryContract.COLUMN_NAME_TAPS,
+                HistoryContract.COLUMN_NAME_TOTAL_CHANGE,
+                HistoryContract.COLUMN_NAME_INCREASE,
+                HistoryContract.COLUMN_NAME_DECREASE
+        }, null, null, null, null, HistoryContract.COLUMN_NAME_PERIOD);
+        try {
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getString(0) + " " + cursor.getLong(1) + " " + cursor.getLong(2)
+                        + " " + cursor.getLong(3) + " " + cursor.getLong(4));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private long taps(String table) {
+        Cursor cursor = mDb.rawQuery("SELECT sum(" + HistoryContract.COLUMN_NAME_TAPS + ") FROM " +
+                table, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package me.freewine.winnie;
+
+import java.util.Random;
+
+/**
+ * Deterministic stream of taps timed like real use: sessions of a few taps less than two
+ * seconds apart, separated by pauses of hours on average, mostly during the day. The same seed
+ * always yields the same stream, so runs on different builds write the same history.
+ */
+final class SyntheticTaps {
+    private static final long SECOND = 1000L;
+    private static final long HOUR = 60 * 60 * SECOND;
+    private static final long DAY = 24 * HOUR;
+
+    // Mean pause between sessions
+    private static final long MEAN_PAUSE = 3 * HOUR;
+    // Sessions hold 1 to this many taps
+    private static final int MAX_SESSION_TAPS = 30;
+
+    private final Random mRandom;
+    private long mTime;
+    private int mSessionLeft;
+    private boolean mSessionIncreasing;
+
+    /**
+     * @param seed  The seed of the stream
+     * @param start The time before the first tap, in milliseconds
+     */
+    SyntheticTaps(long seed, long start) {
+        mRandom = new Random(seed);
+        mTime = start;
+    }
+
+    /**
+     * Returns the time of the next tap, in milliseconds, and advances to it.
+     */
+    long nextTime() {
+        if (mSessionLeft == 0) {
+            mSessionLeft = 1 + mRandom.nextInt(MAX_SESSION_TAPS);
+            mSessionIncreasing = mRandom.nextInt(100) < 60;
+            long pause = (long) (-Math.log(1 - mRandom.nextDouble()) * MEAN_PAUSE);
+            mTime += Math.max(SECOND, pause);
+            // Pushes sessions that fall at night to the next morning
+            long hour = (mTime % DAY) / HOUR;
+            if (hour < 7) {
+                mTime += (7 - hour) * HOUR;
+            }
+        } else {
+            mTime += 200 + mRandom.nextInt(1800);
+        }
+        mSessionLeft--;
+        return mTime;
+    }
+
+    /**
+     * Returns the change of the tap whose time was last returned by {@link #nextTime()}: taps of
+     * a session mostly go the same way.
+     */
+    int nextChange() {
+        boolean increase = mRandom.nextInt(10) < 9 ? mSessionIncreasing : !mSessionIncreasing;
+        return increase ? 50 : -50;
+    }
+
+    /**
+     * Returns the time of the last tap returned.
+     */
+    long time() {
+        return mTime;
+    }
+}
@@ -0,0 +1,46 @@
+package me.freewine.winnie.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import me.freewine.winnie.core.DailyTotals;
+
+/**
+ * Latency of daily rollups: the last 30 days, as a summary screen shows them, and the whole
+ * history. The SQLite store reads the daily rollup table the provider serves, so its cost grows
+ * with the number of days; the in-memory baseline sums the raw rows, whose cost grows with the
+ * history.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class AggregationBenchmark {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private final DailyTotals mTotals = new DailyTotals(0);
+
+    @Benchmark
+    public int lastMonth(HistoryFixture fixture) {
+        mTotals.clear();
+        return fixture.mStore.rollupDaily(fixture.mLastTime - 30 * MILLIS_PER_DAY,
+                Long.MAX_VALUE, mTotals);
+    }
+
+    @Benchmark
+    public int wholeHistory(HistoryFixture fixture) {
+        mTotals.clear();
+        return fixture.mStore.rollupDaily(Long.MIN_VALUE, Long.MAX_VALUE, mTotals);
+    }
+}
@@ -0,0 +1,72 @@
+package me.freewine.winnie.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import me.freewine.winnie.core.CounterEngine;
+import me.freewine.winnie.core.HistoryRows;
+import me.freewine.winnie.core.HistoryStore;
+
+/**
+ * Time to write one import chunk of {@link HistoryFixture#BATCH_ROWS} rows on top of a history.
+ * Each measurement writes into a freshly built history, so every one of them sees the same size.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class BatchInsertBenchmark {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"memory", "sqlite"})
+    public String store;
+
+    private HistoryStore mStore;
+    private final HistoryRows mBatch = new HistoryRows(HistoryFixture.BATCH_ROWS);
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, SQLException {
+        Random random = new Random(rows);
+        long now = System.currentTimeMillis();
+        mStore = HistoryFixture.newStore(store, rows + HistoryFixture.BATCH_ROWS);
+        HistoryFixture.fill(mStore, 1, rows, now, random);
+
+        // The chunk continues the history, as an import of newer rows does
+        mBatch.clear();
+        int count = CounterEngine.INITIAL_COUNT;
+        for (int i = 1; i <= HistoryFixture.BATCH_ROWS; i++) {
+            int change = random.nextBoolean() ? 50 : -50;
+            count = CounterEngine.apply(count, change);
+            mBatch.add(rows + i, count, change, now + i * 60000L);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        HistoryFixture.close(mStore);
+    }
+
+    @Benchmark
+    public int insertChunk() {
+        return mStore.insert(mBatch);
+    }
+}
@@ -0,0 +1,106 @@
+package me.freewine.winnie.benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.TimeZone;
+
+import me.freewine.winnie.core.CounterEngine;
+import me.freewine.winnie.core.HistoryRows;
+import me.freewine.winnie.core.HistoryStore;
+import me.freewine.winnie.core.InMemoryHistoryStore;
+
+/**
+ * A store holding a synthetic history, shared by the benchmarks of a trial.
+ * <p/>
+ * The history is a tap of +50 or -50 every 1 to 119 seconds, 60 on average, ending now, so
+ * 10^7 rows span about 19 years. Rows are written in batches of {@link #BATCH_ROWS}, the size of
+ * an import chunk of the app. The seed is fixed, so every run measures the same history.
+ */
+@State(Scope.Benchmark)
+public class HistoryFixture {
+    static final int BATCH_ROWS = 10000;
+
+    private static final long SEED = 0x57494e4eL;
+
+    // Parameters are public and unprefixed, as JMH shows their names in its reports
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"memory", "sqlite"})
+    public String store;
+
+    HistoryStore mStore;
+    // Time of the oldest and newest rows
+    long mFirstTime;
+    long mLastTime;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        mStore = newStore(store, rows);
+        mLastTime = System.currentTimeMillis();
+        mFirstTime = fill(mStore, 1, rows, mLastTime, new Random(SEED));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        close(mStore);
+    }
+
+    static HistoryStore newStore(String kind, int capacity) throws IOException, SQLException {
+        if ("memory".equals(kind)) {
+            return new InMemoryHistoryStore(capacity, TimeZone.getDefault());
+        } else if ("sqlite".equals(kind)) {
+            return new SqliteHistoryStore();
+        }
+        throw new IllegalArgumentException("Unknown store " + kind);
+    }
+
+    static void close(HistoryStore store) throws IOException {
+        if (store instanceof Closeable) {
+            ((Closeable) store).close();
+        }
+    }
+
+    /**
+     * Writes synthetic rows with consecutive _IDs, the last one at a given time.
+     *
+     * @return the time of the first row written
+     */
+    static long fill(HistoryStore store, long firstId, int rows, long lastTime, Random random) {
+        // Draws the gaps first, so the rows can be written oldest first and still end at lastTime
+        int[] gaps = new int[rows];
+        long span = 0;
+        for (int i = 1; i < rows; i++) {
+            gaps[i] = 1000 * (1 + random.nextInt(119));
+            span += gaps[i];
+        }
+
+        HistoryRows batch = new HistoryRows(BATCH_ROWS);
+        int count = CounterEngine.INITIAL_COUNT;
+        long time = lastTime - span;
+        long firstTime = time;
+        for (int i = 0; i < rows; i++) {
+            time += gaps[i];
+            // Slightly more increments than decrements, like a counter that is mostly going up
+            int change = random.nextInt(100) < 55 ? 50 : -50;
+            count = CounterEngine.apply(count, change);
+            batch.add(firstId + i, count, change, time);
+            if (batch.size() == BATCH_ROWS) {
+                store.insert(batch);
+                batch.clear();
+            }
+        }
+        if (batch.size() > 0) {
+            store.insert(batch);
+        }
+        return firstTime;
+    }
+}
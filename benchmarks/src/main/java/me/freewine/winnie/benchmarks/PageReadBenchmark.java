@@ -0,0 +1,59 @@
+package me.freewine.winnie.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import me.freewine.winnie.core.HistoryRows;
+
+/**
+ * Latency of the reads of the history screen: the newest page, a page at a random depth, as
+ * reached by scrolling, and a page of a single day at a random date, as shown by the day filter.
+ * All three should stay flat as the history grows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class PageReadBenchmark {
+    // Rows per page of the history screen
+    private static final int PAGE_SIZE = 50;
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private final HistoryRows mPage = new HistoryRows(PAGE_SIZE);
+    private final Random mRandom = new Random(1);
+
+    @Benchmark
+    public int newestPage(HistoryFixture fixture) {
+        mPage.clear();
+        return fixture.mStore.readPage(Long.MAX_VALUE, PAGE_SIZE, mPage);
+    }
+
+    @Benchmark
+    public int deepPage(HistoryFixture fixture) {
+        mPage.clear();
+        long before = 1 + mRandom.nextInt(fixture.rows);
+        return fixture.mStore.readPage(before, PAGE_SIZE, mPage);
+    }
+
+    @Benchmark
+    public int dayPage(HistoryFixture fixture) {
+        mPage.clear();
+        long span = Math.max(1, fixture.mLastTime - fixture.mFirstTime);
+        long since = fixture.mFirstTime + (long) (mRandom.nextDouble() * span);
+        return fixture.mStore.readRange(since, since + MILLIS_PER_DAY, Long.MAX_VALUE, PAGE_SIZE,
+                mPage);
+    }
+}
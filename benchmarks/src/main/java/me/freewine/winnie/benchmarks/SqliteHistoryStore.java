@@ -0,0 +1,288 @@
+package me.freewine.winnie.benchmarks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+import me.freewine.winnie.core.CounterEngine;
+import me.freewine.winnie.core.DailyTotals;
+import me.freewine.winnie.core.HistoryRows;
+import me.freewine.winnie.core.HistorySchema;
+import me.freewine.winnie.core.HistoryStore;
+
+/**
+ * {@link HistoryStore} on a SQLite database file through JDBC, created and written with the
+ * statements of {@link HistorySchema}, as the app's HistoryProvider is: the history table and
+ * its time index, the rollup tables kept up to date by their trigger, and a checkpoint of the
+ * count every {@link HistorySchema#CHECKPOINT_INTERVAL} events, recovered from on the next read.
+ * It runs with WAL journaling and one transaction per increment or insert. Daily rollups are
+ * read from the rollup table with {@link HistorySchema#SQL_DAILY_TOTALS}, so they cover whole
+ * local days, as those the provider serves.
+ * <p/>
+ * Pages are keyset pages on the primary key, with time ranges read from
+ * {@link HistorySchema#TABLE_BY_TIME}. The provider builds these two statements from the
+ * parameters of a page URI, so they are written out here; keep them in step with
+ * HistoryProvider.queryPage(), or the numbers stop meaning anything.
+ */
+final class SqliteHistoryStore implements HistoryStore, Closeable {
+    private static final String TABLE_NAME = HistorySchema.TABLE_NAME;
+
+    private static final String SQL_PAGE = "SELECT _id,count,change,time FROM " + TABLE_NAME +
+            " WHERE _id < ? ORDER BY _id DESC LIMIT ?";
+
+    private static final String SQL_RANGE = "SELECT _id,count,change,time FROM " +
+            HistorySchema.TABLE_BY_TIME +
+            " WHERE _id < ? AND time >= ? AND time < ? ORDER BY _id DESC LIMIT ?";
+
+    private final File mFile;
+    private final Connection mConnection;
+    private final PreparedStatement mInsert;
+    private final PreparedStatement mImport;
+    private final PreparedStatement mCheckpoint;
+    private final PreparedStatement mPage;
+    private final PreparedStatement mRange;
+    private final PreparedStatement mRollup;
+
+    // Count after the event mLastId, like the checkpoints of the provider; -1 until recovered
+    private int mCount = -1;
+    private long mLastId;
+
+    // _ID of the last event included in the newest checkpoint
+    private long mCheckpointId;
+
+    /**
+     * Creates an empty store in a new temporary file.
+     */
+    SqliteHistoryStore() throws IOException, SQLException {
+        mFile = File.createTempFile("history", ".db");
+        mConnection = DriverManager.getConnection("jdbc:sqlite:" + mFile.getPath());
+        Statement statement = mConnection.createStatement();
+        try {
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute(HistorySchema.SQL_CREATE_ENTRIES);
+            statement.execute(HistorySchema.SQL_CREATE_TIME_INDEX);
+            statement.execute(HistorySchema.SQL_CREATE_DAILY);
+            statement.execute(HistorySchema.SQL_CREATE_HOURLY);
+            statement.execute(HistorySchema.SQL_CREATE_ROLLUP_TRIGGER);
+            statement.execute(HistorySchema.SQL_CREATE_CHECKPOINTS);
+        } finally {
+            statement.close();
+        }
+        mConnection.setAutoCommit(false);
+        mInsert = mConnection.prepareStatement(HistorySchema.SQL_INSERT_ENTRY);
+        mImport = mConnection.prepareStatement(HistorySchema.SQL_IMPORT_ENTRY);
+        mCheckpoint = mConnection.prepareStatement(HistorySchema.SQL_INSERT_CHECKPOINT);
+        mPage = mConnection.prepareStatement(SQL_PAGE);
+        mRange = mConnection.prepareStatement(SQL_RANGE);
+        mRollup = mConnection.prepareStatement(HistorySchema.SQL_DAILY_TOTALS);
+
+        // The provider checkpoints the empty history when it creates the table
+        insertCheckpoint(0, CounterEngine.INITIAL_COUNT);
+        mConnection.commit();
+    }
+
+    @Override
+    public int increment(int[] changes, long[] times) {
+        try {
+            int count = getCount();
+            for (int i = 0; i < changes.length; i++) {
+                count = CounterEngine.apply(count, changes[i]);
+                mInsert.setNull(1, Types.INTEGER);
+                mInsert.setInt(2, count);
+                mInsert.setInt(3, changes[i]);
+                mInsert.setLong(4, times[i]);
+                mInsert.executeUpdate();
+                // A NULL _ID gets the highest one plus one, which recovery has left in mLastId
+                mLastId++;
+                if (mLastId - mCheckpointId >= HistorySchema.CHECKPOINT_INTERVAL) {
+                    checkpoint(count);
+                }
+            }
+            mConnection.commit();
+            mCount = count;
+            return count;
+        } catch (SQLException e) {
+            rollback();
+            throw new IllegalStateException("Increment failed", e);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        if (mCount == -1) {
+            try {
+                recover();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Count failed", e);
+            }
+        }
+        return mCount;
+    }
+
+    /**
+     * Loads the newest checkpoint and replays the events after it, checkpointing again if the
+     * replay was long, as HistoryCheckpoints does.
+     */
+    private void recover() throws SQLException {
+        int count = CounterEngine.INITIAL_COUNT;
+        long checkpointId = 0;
+        Statement statement = mConnection.createStatement();
+        try {
+            ResultSet checkpoint = statement.executeQuery(HistorySchema.SQL_NEWEST_CHECKPOINT);
+            if (checkpoint.next()) {
+                checkpointId = checkpoint.getLong(1);
+                count = checkpoint.getInt(2);
+            }
+            checkpoint.close();
+        } finally {
+            statement.close();
+        }
+
+        long lastId = checkpointId;
+        int replayed = 0;
+        PreparedStatement query = mConnection.prepareStatement(HistorySchema.SQL_EVENTS_AFTER);
+        try {
+            query.setLong(1, checkpointId);
+            ResultSet events = query.executeQuery();
+            while (events.next()) {
+                lastId = events.getLong(1);
+                count = CounterEngine.apply(count, events.getInt(2));
+                replayed++;
+            }
+            events.close();
+        } finally {
+            query.close();
+        }
+
+        mCheckpointId = checkpointId;
+        mLastId = lastId;
+        mCount = count;
+        if (replayed >= HistorySchema.CHECKPOINT_INTERVAL) {
+            checkpoint(count);
+            mConnection.commit();
+        }
+    }
+
+    private void checkpoint(int count) throws SQLException {
+        insertCheckpoint(mLastId, count);
+        mCheckpointId = mLastId;
+    }
+
+    private void insertCheckpoint(long historyId, int count) throws SQLException {
+        mCheckpoint.setLong(1, historyId);
+        mCheckpoint.setInt(2, count);
+        mCheckpoint.setLong(3, System.currentTimeMillis());
+        mCheckpoint.executeUpdate();
+    }
+
+    @Override
+    public int insert(HistoryRows rows) {
+        try {
+            int inserted = 0;
+            for (int i = 0; i < rows.size(); i++) {
+                mImport.setLong(1, rows.getId(i));
+                mImport.setInt(2, rows.getCount(i));
+                mImport.setInt(3, rows.getChange(i));
+                mImport.setLong(4, rows.getTime(i));
+                inserted += mImport.executeUpdate();
+            }
+            mConnection.commit();
+            // Imported rows bypass the count; it is replayed on the next read
+            mCount = -1;
+            return inserted;
+        } catch (SQLException e) {
+            rollback();
+            throw new IllegalStateException("Insert failed", e);
+        }
+    }
+
+    @Override
+    public int readPage(long before, int limit, HistoryRows page) {
+        try {
+            mPage.setLong(1, before);
+            mPage.setInt(2, limit);
+            return read(mPage, page);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Page read failed", e);
+        }
+    }
+
+    @Override
+    public int readRange(long since, long until, long before, int limit, HistoryRows page) {
+        try {
+            mRange.setLong(1, before);
+            mRange.setLong(2, since);
+            mRange.setLong(3, until);
+            mRange.setInt(4, limit);
+            return read(mRange, page);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Range read failed", e);
+        }
+    }
+
+    private int read(PreparedStatement query, HistoryRows page) throws SQLException {
+        int read = 0;
+        ResultSet rows = query.executeQuery();
+        try {
+            while (rows.next()) {
+                page.add(rows.getLong(1), rows.getInt(2), rows.getInt(3), rows.getLong(4));
+                read++;
+            }
+        } finally {
+            rows.close();
+        }
+        return read;
+    }
+
+    @Override
+    public int rollupDaily(long since, long until, DailyTotals totals) {
+        try {
+            // Days outside of what SQLite can format have no rollup rows anyway
+            mRollup.setLong(1, Math.max(0, Math.min(since, HistorySchema.MAX_TIME)));
+            mRollup.setLong(2, Math.max(0, Math.min(until, HistorySchema.MAX_TIME)));
+            int days = 0;
+            ResultSet rows = mRollup.executeQuery();
+            try {
+                while (rows.next()) {
+                    totals.set(rows.getInt(1), rows.getInt(2), rows.getLong(3), rows.getLong(4),
+                            rows.getLong(5));
+                    days++;
+                }
+            } finally {
+                rows.close();
+            }
+            return days;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Rollup failed", e);
+        }
+    }
+
+    private void rollback() {
+        try {
+            mConnection.rollback();
+        } catch (SQLException e) {
+            // The original failure is the one worth reporting
+        }
+        mCount = -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mConnection.close();
+        } catch (SQLException e) {
+            throw new IOException("Failed to close " + mFile, e);
+        } finally {
+            mFile.delete();
+            new File(mFile.getPath() + "-wal").delete();
+            new File(mFile.getPath() + "-shm").delete();
+        }
+    }
+}
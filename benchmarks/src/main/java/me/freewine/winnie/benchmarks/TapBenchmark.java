@@ -0,0 +1,53 @@
+package me.freewine.winnie.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of taps reaching the history: one tap per transaction, as without the writer's
+ * group commit, and a full batch of the writer per transaction. The history grows by the taps
+ * measured, which is negligible next to its size except for the smallest ones.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class TapBenchmark {
+    // Maximum number of taps HistoryWriter commits in one transaction
+    private static final int WRITER_BATCH = 64;
+
+    private final int[] mOne = new int[1];
+    private final long[] mOneTime = new long[1];
+    private final int[] mBatch = new int[WRITER_BATCH];
+    private final long[] mBatchTimes = new long[WRITER_BATCH];
+    private int mTaps;
+
+    @Benchmark
+    public int singleTap(HistoryFixture fixture) {
+        mOne[0] = (mTaps++ & 1) == 0 ? 50 : -50;
+        mOneTime[0] = ++fixture.mLastTime;
+        return fixture.mStore.increment(mOne, mOneTime);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITER_BATCH)
+    public int writerBatch(HistoryFixture fixture) {
+        for (int i = 0; i < WRITER_BATCH; i++) {
+            mBatch[i] = (mTaps++ & 1) == 0 ? 50 : -50;
+            mBatchTimes[i] = ++fixture.mLastTime;
+        }
+        return fixture.mStore.increment(mBatch, mBatchTimes);
+    }
+}
@@ -0,0 +1,41 @@
+package me.freewine.winnie.core;
+
+/**
+ * Rules of the counter, shared by the app and by anything that replays or benchmarks its history.
+ * <p/>
+ * The count starts at {@link #INITIAL_COUNT} and each tap adds its change to it, clamping the
+ * result at zero. Since only decrements are clamped, and the count is clamped after each of them,
+ * a run of taps of the same sign has the same effect as one tap carrying their summed change,
+ * which is what lets {@link #canCoalesce} merge them.
+ */
+public final class CounterEngine {
+    // Count before the first history row
+    public static final int INITIAL_COUNT = 150;
+
+    private CounterEngine() {
+    }
+
+    /**
+     * Returns the count after a change.
+     *
+     * @param count  The count before the change
+     * @param change The change, positive or negative
+     */
+    public static int apply(int count, int change) {
+        return Math.max(0, count + change);
+    }
+
+    /**
+     * Returns whether a tap can be merged into a run of taps without changing the resulting count.
+     *
+     * @param runChange The summed change of the run
+     * @param runTime   The time of the first tap of the run, in milliseconds
+     * @param change    The change of the tap
+     * @param time      The time of the tap, in milliseconds
+     * @param windowMs  How long after its first tap a run accepts taps, or 0 to merge none
+     */
+    public static boolean canCoalesce(int runChange, long runTime, int change, long time,
+                                      long windowMs) {
+        return (runChange < 0) == (change < 0) && time - runTime < windowMs;
+    }
+}
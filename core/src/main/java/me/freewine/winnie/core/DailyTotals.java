@@ -0,0 +1,122 @@
+package me.freewine.winnie.core;
+
+/**
+ * Per-day rollup of history rows, oldest day first, held in parallel primitive arrays. Mirrors
+ * one row of the daily rollup table of the app per day.
+ */
+public final class DailyTotals {
+    private static final int MIN_CAPACITY = 16;
+
+    // Local day, as days since the epoch
+    private int[] mDays;
+    private int[] mTaps;
+    private long[] mTotals;
+    private long[] mIncreases;
+    private long[] mDecreases;
+    private int mSize;
+
+    public DailyTotals(int capacity) {
+        capacity = Math.max(capacity, MIN_CAPACITY);
+        mDays = new int[capacity];
+        mTaps = new int[capacity];
+        mTotals = new long[capacity];
+        mIncreases = new long[capacity];
+        mDecreases = new long[capacity];
+    }
+
+    /**
+     * Adds one row to the totals of a day. Days must be added in ascending order.
+     *
+     * @param day    The local day of the row, as days since the epoch
+     * @param change The change of the row
+     */
+    public void add(int day, int change) {
+        if (mSize == 0 || mDays[mSize - 1] != day) {
+            if (mSize > 0 && day < mDays[mSize - 1]) {
+                throw new IllegalArgumentException("Day " + day + " added out of order");
+            }
+            if (mSize == mDays.length) {
+                grow(mSize * 2);
+            }
+            mDays[mSize] = day;
+            mTaps[mSize] = 0;
+            mTotals[mSize] = 0;
+            mIncreases[mSize] = 0;
+            mDecreases[mSize] = 0;
+            mSize++;
+        }
+        int last = mSize - 1;
+        mTaps[last]++;
+        mTotals[last] += change;
+        if (change > 0) {
+            mIncreases[last] += change;
+        } else {
+            mDecreases[last] += change;
+        }
+    }
+
+    /**
+     * Sets the totals of a day at once, for stores that aggregate on their own. Days must be set
+     * in ascending order.
+     */
+    public void set(int day, int taps, long total, long increase, long decrease) {
+        if (mSize > 0 && day <= mDays[mSize - 1]) {
+            throw new IllegalArgumentException("Day " + day + " set out of order");
+        }
+        if (mSize == mDays.length) {
+            grow(mSize * 2);
+        }
+        mDays[mSize] = day;
+        mTaps[mSize] = taps;
+        mTotals[mSize] = total;
+        mIncreases[mSize] = increase;
+        mDecreases[mSize] = decrease;
+        mSize++;
+    }
+
+    private void grow(int capacity) {
+        int[] days = new int[capacity];
+        int[] taps = new int[capacity];
+        long[] totals = new long[capacity];
+        long[] increases = new long[capacity];
+        long[] decreases = new long[capacity];
+        System.arraycopy(mDays, 0, days, 0, mSize);
+        System.arraycopy(mTaps, 0, taps, 0, mSize);
+        System.arraycopy(mTotals, 0, totals, 0, mSize);
+        System.arraycopy(mIncreases, 0, increases, 0, mSize);
+        System.arraycopy(mDecreases, 0, decreases, 0, mSize);
+        mDays = days;
+        mTaps = taps;
+        mTotals = totals;
+        mIncreases = increases;
+        mDecreases = decreases;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getDay(int position) {
+        return mDays[position];
+    }
+
+    public int getTaps(int position) {
+        return mTaps[position];
+    }
+
+    public long getTotal(int position) {
+        return mTotals[position];
+    }
+
+    public long getIncrease(int position) {
+        return mIncreases[position];
+    }
+
+    public long getDecrease(int position) {
+        return mDecreases[position];
+    }
+}
@@ -0,0 +1,102 @@
+package me.freewine.winnie.core;
+
+/**
+ * Growable run of history rows held in parallel primitive arrays, 24 bytes per row.
+ * <p/>
+ * Used to pass rows in and out of a {@link HistoryStore} without a per-row object. The backing
+ * arrays are exposed for bulk reads; only the first {@link #size()} entries are valid, and they
+ * may be replaced by larger ones as rows are added.
+ */
+public final class HistoryRows {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mIds;
+    private long[] mTimes;
+    private int[] mCounts;
+    private int[] mChanges;
+    private int mSize;
+
+    /**
+     * @param capacity The number of rows expected
+     */
+    public HistoryRows(int capacity) {
+        capacity = Math.max(capacity, MIN_CAPACITY);
+        mIds = new long[capacity];
+        mTimes = new long[capacity];
+        mCounts = new int[capacity];
+        mChanges = new int[capacity];
+    }
+
+    /**
+     * Appends a row.
+     */
+    public void add(long id, int count, int change, long time) {
+        if (mSize == mIds.length) {
+            grow(mSize * 2);
+        }
+        mIds[mSize] = id;
+        mTimes[mSize] = time;
+        mCounts[mSize] = count;
+        mChanges[mSize] = change;
+        mSize++;
+    }
+
+    private void grow(int capacity) {
+        long[] ids = new long[capacity];
+        long[] times = new long[capacity];
+        int[] counts = new int[capacity];
+        int[] changes = new int[capacity];
+        System.arraycopy(mIds, 0, ids, 0, mSize);
+        System.arraycopy(mTimes, 0, times, 0, mSize);
+        System.arraycopy(mCounts, 0, counts, 0, mSize);
+        System.arraycopy(mChanges, 0, changes, 0, mSize);
+        mIds = ids;
+        mTimes = times;
+        mCounts = counts;
+        mChanges = changes;
+    }
+
+    /**
+     * Removes every row, keeping the arrays for reuse.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    public long getTime(int position) {
+        return mTimes[position];
+    }
+
+    public int getCount(int position) {
+        return mCounts[position];
+    }
+
+    public int getChange(int position) {
+        return mChanges[position];
+    }
+
+    // Backing arrays; valid up to size()
+    public long[] ids() {
+        return mIds;
+    }
+
+    public long[] times() {
+        return mTimes;
+    }
+
+    public int[] counts() {
+        return mCounts;
+    }
+
+    public int[] changes() {
+        return mChanges;
+    }
+}
@@ -0,0 +1,218 @@
+package me.freewine.winnie.core;
+
+/**
+ * SQL of the history database: the history table and its time index, the daily and hourly
+ * rollups with the trigger that maintains them and the reads of them, and the checkpoints of the
+ * count. The app's content provider creates, writes and summarizes its database with these
+ * statements, and the benchmarks run the same ones, so what they measure is what the app
+ * executes.
+ * <p/>
+ * The rollup trigger only counts inserts, and the checkpoints only replay the rows after the
+ * newest one, so the history table must stay append-only: rows are never updated, deleted from
+ * the live table except to archive them, or replaced. The app's content provider rejects updates,
+ * deletes and inserts that would replace an existing _ID.
+ */
+public final class HistorySchema {
+    public static final String TABLE_NAME = "history";
+    public static final String COLUMN_NAME_ID = "_id";
+    public static final String COLUMN_NAME_TIME = "time";
+    public static final String COLUMN_NAME_CNT = "count";
+    public static final String COLUMN_NAME_CHANGE = "change";
+
+    public static final String INDEX_NAME_TIME = "history_time_idx";
+
+    // The history table pinned to its time index, to read time ranges from; otherwise SQLite
+    // may prefer walking the primary key for an ORDER BY _id, which scans every row newer than
+    // the range
+    public static final String TABLE_BY_TIME = TABLE_NAME + " INDEXED BY " + INDEX_NAME_TIME;
+
+    public static final String DAILY_TABLE_NAME = "history_daily";
+    public static final String HOURLY_TABLE_NAME = "history_hourly";
+
+    // Local day (yyyy-MM-dd) or hour (yyyy-MM-dd HH) of a rollup row
+    public static final String COLUMN_NAME_PERIOD = "period";
+    // Number of taps in the period
+    public static final String COLUMN_NAME_TAPS = "taps";
+    // Sum of the changes of the period
+    public static final String COLUMN_NAME_TOTAL_CHANGE = "total_change";
+    // Sum of the positive changes of the period
+    public static final String COLUMN_NAME_INCREASE = "increase";
+    // Sum of the negative changes of the period
+    public static final String COLUMN_NAME_DECREASE = "decrease";
+
+    // strftime formats of the local day and hour of the rollups
+    public static final String DAY_FORMAT = "%Y-%m-%d";
+    public static final String HOUR_FORMAT = "%Y-%m-%d %H";
+
+    public static final String CHECKPOINTS_TABLE_NAME = "checkpoints";
+    // _ID of the last history row included in the checkpoint
+    public static final String COLUMN_NAME_HISTORY_ID = "history_id";
+
+    // Maximum number of events between two checkpoints, and so replayed by a recovery
+    public static final int CHECKPOINT_INTERVAL = 100;
+
+    // Latest time whose local day SQLite can format, the end of the year 9999 in UTC
+    public static final long MAX_TIME = 253402300799999L;
+
+    private static final String TRIGGER_NAME = "history_rollup_insert";
+
+    public static final String SQL_CREATE_ENTRIES =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_NAME_ID + " INTEGER PRIMARY KEY," +
+                    COLUMN_NAME_CNT + " INTEGER NOT NULL ," +
+                    COLUMN_NAME_CHANGE + " INTEGER NOT NULL ," +
+                    COLUMN_NAME_TIME + " LONG NOT NULL " +
+                    " )";
+
+    // Index that turns time range selections into index range scans
+    public static final String SQL_CREATE_TIME_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_NAME_TIME + " ON " +
+                    TABLE_NAME + " (" + COLUMN_NAME_TIME + ")";
+
+    // Inserts one history row; binds _ID, count, change and time in that order. An _ID that
+    // already exists fails the insert, as replacing a row would count it twice in the rollups
+    public static final String SQL_INSERT_ENTRY =
+            "INSERT INTO " + TABLE_NAME + " (" +
+                    COLUMN_NAME_ID + "," +
+                    COLUMN_NAME_CNT + "," +
+                    COLUMN_NAME_CHANGE + "," +
+                    COLUMN_NAME_TIME +
+                    ") VALUES (?,?,?,?)";
+
+    // Inserts one history row unless its _ID exists; binds _ID, count, change and time
+    public static final String SQL_IMPORT_ENTRY =
+            "INSERT OR IGNORE INTO " + TABLE_NAME + " (" +
+                    COLUMN_NAME_ID + "," +
+                    COLUMN_NAME_CNT + "," +
+                    COLUMN_NAME_CHANGE + "," +
+                    COLUMN_NAME_TIME +
+                    ") VALUES (?,?,?,?)";
+
+    public static final String SQL_CREATE_DAILY = createRollup(DAILY_TABLE_NAME);
+    public static final String SQL_CREATE_HOURLY = createRollup(HOURLY_TABLE_NAME);
+
+    // Adds every inserted history row to its day and hour
+    public static final String SQL_CREATE_ROLLUP_TRIGGER = rollupTrigger();
+
+    // Rollups built on the fly from the raw history rows, with the columns of the rollup tables.
+    // Read as tables by the provider until the rollups have been backfilled
+    public static final String SQL_DAILY_FROM_HISTORY = fromHistory(DAY_FORMAT);
+    public static final String SQL_HOURLY_FROM_HISTORY = fromHistory(HOUR_FORMAT);
+
+    // Reads the daily rollup rows of the local days a time range overlaps, oldest first: the day
+    // as days since the epoch, then taps, total change, increase and decrease. Binds the start and
+    // the exclusive end of the range, in milliseconds from 0 to MAX_TIME
+    public static final String SQL_DAILY_TOTALS = "SELECT " +
+            "CAST(julianday(" + COLUMN_NAME_PERIOD + ") - 2440587.5 AS INTEGER)," +
+            COLUMN_NAME_TAPS + "," + COLUMN_NAME_TOTAL_CHANGE + "," +
+            COLUMN_NAME_INCREASE + "," + COLUMN_NAME_DECREASE +
+            " FROM " + DAILY_TABLE_NAME +
+            " WHERE " + COLUMN_NAME_PERIOD + " >= " + period(DAY_FORMAT, "?") +
+            " AND " + COLUMN_NAME_PERIOD + " <= " + period(DAY_FORMAT, "(? - 1)") +
+            " ORDER BY " + COLUMN_NAME_PERIOD;
+
+    public static final String SQL_CREATE_CHECKPOINTS =
+            "CREATE TABLE IF NOT EXISTS " + CHECKPOINTS_TABLE_NAME + " (" +
+                    COLUMN_NAME_ID + " INTEGER PRIMARY KEY," +
+                    COLUMN_NAME_HISTORY_ID + " INTEGER NOT NULL," +
+                    COLUMN_NAME_CNT + " INTEGER NOT NULL," +
+                    COLUMN_NAME_TIME + " LONG NOT NULL" +
+                    " )";
+
+    // Inserts one checkpoint; binds the history _ID, count and time in that order
+    public static final String SQL_INSERT_CHECKPOINT =
+            "INSERT INTO " + CHECKPOINTS_TABLE_NAME + " (" +
+                    COLUMN_NAME_HISTORY_ID + "," +
+                    COLUMN_NAME_CNT + "," +
+                    COLUMN_NAME_TIME +
+                    ") VALUES (?,?,?)";
+
+    // Reads the history _ID and count of the newest checkpoint
+    public static final String SQL_NEWEST_CHECKPOINT =
+            "SELECT " + COLUMN_NAME_HISTORY_ID + "," + COLUMN_NAME_CNT +
+                    " FROM " + CHECKPOINTS_TABLE_NAME +
+                    " ORDER BY " + COLUMN_NAME_ID + " DESC LIMIT 1";
+
+    // Reads the _ID and change of the events after a checkpoint, oldest first; binds its _ID
+    public static final String SQL_EVENTS_AFTER =
+            "SELECT " + COLUMN_NAME_ID + "," + COLUMN_NAME_CHANGE + " FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_ID + " > ? ORDER BY " + COLUMN_NAME_ID;
+
+    private HistorySchema() {
+    }
+
+    /**
+     * Returns the SQL expression of the local period a time column falls in.
+     *
+     * @param format     {@link #DAY_FORMAT} or {@link #HOUR_FORMAT}
+     * @param timeColumn The column holding the time, in milliseconds since the epoch
+     */
+    public static String period(String format, String timeColumn) {
+        return "strftime('" + format + "', " + timeColumn + " / 1000, 'unixepoch', 'localtime')";
+    }
+
+    /**
+     * Returns the statement creating the row of a period if it does not exist yet.
+     *
+     * @param table  {@link #DAILY_TABLE_NAME} or {@link #HOURLY_TABLE_NAME}
+     * @param period The SQL expression of the period, or ? to bind it
+     */
+    public static String ensurePeriod(String table, String period) {
+        return "INSERT OR IGNORE INTO " + table +
+                " (" + COLUMN_NAME_PERIOD + ") VALUES (" + period + ")";
+    }
+
+    /**
+     * Returns the statement adding taps to the row of a period. Each argument is an SQL
+     * expression, or ? to bind it.
+     */
+    public static String addToPeriod(String table, String taps, String total, String increase,
+                                     String decrease, String period) {
+        return "UPDATE " + table + " SET " +
+                COLUMN_NAME_TAPS + " = " + COLUMN_NAME_TAPS + " + " + taps + "," +
+                COLUMN_NAME_TOTAL_CHANGE + " = " + COLUMN_NAME_TOTAL_CHANGE + " + " + total + "," +
+                COLUMN_NAME_INCREASE + " = " + COLUMN_NAME_INCREASE + " + " + increase + "," +
+                COLUMN_NAME_DECREASE + " = " + COLUMN_NAME_DECREASE + " + " + decrease +
+                " WHERE " + COLUMN_NAME_PERIOD + " = " + period;
+    }
+
+    private static String fromHistory(String format) {
+        String change = COLUMN_NAME_CHANGE;
+        return "(SELECT " +
+                "min(" + COLUMN_NAME_ID + ") AS " + COLUMN_NAME_ID + "," +
+                period(format, COLUMN_NAME_TIME) + " AS " + COLUMN_NAME_PERIOD + "," +
+                "count(*) AS " + COLUMN_NAME_TAPS + "," +
+                "sum(" + change + ") AS " + COLUMN_NAME_TOTAL_CHANGE + "," +
+                "sum(max(" + change + ", 0)) AS " + COLUMN_NAME_INCREASE + "," +
+                "sum(min(" + change + ", 0)) AS " + COLUMN_NAME_DECREASE +
+                " FROM " + TABLE_NAME +
+                " GROUP BY " + COLUMN_NAME_PERIOD + ")";
+    }
+
+    private static String createRollup(String table) {
+        return "CREATE TABLE IF NOT EXISTS " + table + " (" +
+                COLUMN_NAME_ID + " INTEGER PRIMARY KEY," +
+                COLUMN_NAME_PERIOD + " TEXT NOT NULL UNIQUE," +
+                COLUMN_NAME_TAPS + " INTEGER NOT NULL DEFAULT 0," +
+                COLUMN_NAME_TOTAL_CHANGE + " INTEGER NOT NULL DEFAULT 0," +
+                COLUMN_NAME_INCREASE + " INTEGER NOT NULL DEFAULT 0," +
+                COLUMN_NAME_DECREASE + " INTEGER NOT NULL DEFAULT 0" +
+                " )";
+    }
+
+    private static String rollupTrigger() {
+        String change = "NEW." + COLUMN_NAME_CHANGE;
+        String day = period(DAY_FORMAT, "NEW." + COLUMN_NAME_TIME);
+        String hour = period(HOUR_FORMAT, "NEW." + COLUMN_NAME_TIME);
+        String increase = "max(" + change + ", 0)";
+        String decrease = "min(" + change + ", 0)";
+
+        return "CREATE TRIGGER IF NOT EXISTS " + TRIGGER_NAME +
+                " AFTER INSERT ON " + TABLE_NAME + " BEGIN " +
+                ensurePeriod(DAILY_TABLE_NAME, day) + "; " +
+                addToPeriod(DAILY_TABLE_NAME, "1", change, increase, decrease, day) + "; " +
+                ensurePeriod(HOURLY_TABLE_NAME, hour) + "; " +
+                addToPeriod(HOURLY_TABLE_NAME, "1", change, increase, decrease, hour) + "; " +
+                "END";
+    }
+}
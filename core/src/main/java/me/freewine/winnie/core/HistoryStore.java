@@ -0,0 +1,71 @@
+package me.freewine.winnie.core;
+
+/**
+ * Storage of the counter history: an append-only log of rows, each holding the change of one
+ * tap, or of a run of merged taps, and the count right after it. The count is derived from the
+ * log and has no other copy.
+ * <p/>
+ * Reads are keyset pages, newest first, addressed by the _ID of the last row of the previous
+ * page, so their cost depends on the page size and not on how deep into the history they lie.
+ * The app's content provider does not implement this interface: it keeps the same log in
+ * SQLite with the statements of {@link HistorySchema}. Implementations let that behaviour and
+ * its cost be checked off the device.
+ */
+public interface HistoryStore {
+    /**
+     * Appends one row per change, each advancing the count by {@link CounterEngine#apply}, all
+     * at once.
+     *
+     * @param changes The changes, in order
+     * @param times   The time of each change, in milliseconds
+     * @return the count after the last change
+     */
+    int increment(int[] changes, long[] times);
+
+    /**
+     * Returns the current count, {@link CounterEngine#INITIAL_COUNT} for an empty history.
+     */
+    int getCount();
+
+    /**
+     * Writes rows that carry their own _IDs, as an import does, at once. Rows whose _ID already
+     * exists are skipped.
+     *
+     * @param rows The rows, in ascending _ID order
+     * @return the number of rows written
+     */
+    int insert(HistoryRows rows);
+
+    /**
+     * Reads one page of rows, newest first.
+     *
+     * @param before Only rows with an _ID below this one are read; Long.MAX_VALUE for the newest
+     * @param limit  The maximum number of rows read
+     * @param page   Receives the rows; not cleared first
+     * @return the number of rows read
+     */
+    int readPage(long before, int limit, HistoryRows page);
+
+    /**
+     * Reads one page of the rows of a time range, newest first.
+     *
+     * @param since  The start of the range, in milliseconds, inclusive
+     * @param until  The end of the range, in milliseconds, exclusive
+     * @param before Only rows with an _ID below this one are read; Long.MAX_VALUE for the newest
+     * @param limit  The maximum number of rows read
+     * @param page   Receives the rows; not cleared first
+     * @return the number of rows read
+     */
+    int readRange(long since, long until, long before, int limit, HistoryRows page);
+
+    /**
+     * Sums the rows of a time range per local day. Implementations reading precomputed daily
+     * rollups, as the app does, sum every row of the days the range overlaps.
+     *
+     * @param since  The start of the range, in milliseconds, inclusive
+     * @param until  The end of the range, in milliseconds, exclusive
+     * @param totals Receives one entry per day holding rows, oldest first; not cleared first
+     * @return the number of days added
+     */
+    int rollupDaily(long since, long until, DailyTotals totals);
+}
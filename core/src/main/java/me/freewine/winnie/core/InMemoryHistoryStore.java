@@ -0,0 +1,244 @@
+package me.freewine.winnie.core;
+
+import java.util.TimeZone;
+
+/**
+ * {@link HistoryStore} held in memory in parallel primitive arrays sorted by _ID.
+ * <p/>
+ * Serves as the reference implementation of the contract and as the baseline the SQLite store
+ * is measured against. Pages are found by binary search on the _IDs. While times grow with _IDs,
+ * which holds unless rows are imported out of order, time ranges are found by binary search on
+ * the times too, standing in for the time index of the app; otherwise they are scanned.
+ * <p/>
+ * Not thread-safe.
+ */
+public final class InMemoryHistoryStore implements HistoryStore {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private final TimeZone mZone;
+
+    private long[] mIds;
+    private long[] mTimes;
+    private int[] mCounts;
+    private int[] mChanges;
+    private int mSize;
+
+    // Whether the times never decrease with the _IDs, which allows binary searches on them
+    private boolean mTimeOrdered = true;
+
+    private int mCount = CounterEngine.INITIAL_COUNT;
+    // False once rows were inserted before the newest one; the count is replayed on the next read
+    private boolean mCountValid = true;
+
+    /**
+     * @param capacity The number of rows expected
+     * @param zone     The zone of the local days of {@link #rollupDaily}
+     */
+    public InMemoryHistoryStore(int capacity, TimeZone zone) {
+        mZone = zone;
+        capacity = Math.max(capacity, 16);
+        mIds = new long[capacity];
+        mTimes = new long[capacity];
+        mCounts = new int[capacity];
+        mChanges = new int[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public int increment(int[] changes, long[] times) {
+        int count = getCount();
+        long id = mSize == 0 ? 0 : mIds[mSize - 1];
+        for (int i = 0; i < changes.length; i++) {
+            count = CounterEngine.apply(count, changes[i]);
+            insertAt(mSize, ++id, count, changes[i], times[i]);
+        }
+        mCount = count;
+        return count;
+    }
+
+    @Override
+    public int getCount() {
+        if (!mCountValid) {
+            int count = CounterEngine.INITIAL_COUNT;
+            for (int i = 0; i < mSize; i++) {
+                count = CounterEngine.apply(count, mChanges[i]);
+            }
+            mCount = count;
+            mCountValid = true;
+        }
+        return mCount;
+    }
+
+    @Override
+    public int insert(HistoryRows rows) {
+        int inserted = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            long id = rows.getId(i);
+            int position = mSize;
+            if (mSize > 0 && id <= mIds[mSize - 1]) {
+                position = lowerBound(mIds, mSize, id);
+                if (mIds[position] == id) {
+                    continue;
+                }
+            }
+            boolean appended = position == mSize;
+            if (!appended) {
+                mCountValid = false;
+            }
+            insertAt(position, id, rows.getCount(i), rows.getChange(i), rows.getTime(i));
+            // Like the app, derives the count from the changes, not from the counts written
+            if (appended && mCountValid) {
+                mCount = CounterEngine.apply(mCount, rows.getChange(i));
+            }
+            inserted++;
+        }
+        return inserted;
+    }
+
+    @Override
+    public int readPage(long before, int limit, HistoryRows page) {
+        int read = 0;
+        for (int i = lowerBound(mIds, mSize, before) - 1; i >= 0 && read < limit; i--) {
+            page.add(mIds[i], mCounts[i], mChanges[i], mTimes[i]);
+            read++;
+        }
+        return read;
+    }
+
+    @Override
+    public int readRange(long since, long until, long before, int limit, HistoryRows page) {
+        int end = lowerBound(mIds, mSize, before);
+        int start = 0;
+        if (mTimeOrdered) {
+            end = Math.min(end, lowerBound(mTimes, mSize, until));
+            start = lowerBound(mTimes, mSize, since);
+        }
+        int read = 0;
+        for (int i = end - 1; i >= start && read < limit; i--) {
+            if (mTimes[i] >= since && mTimes[i] < until) {
+                page.add(mIds[i], mCounts[i], mChanges[i], mTimes[i]);
+                read++;
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public int rollupDaily(long since, long until, DailyTotals totals) {
+        int start = 0;
+        int end = mSize;
+        if (mTimeOrdered) {
+            start = lowerBound(mTimes, mSize, since);
+            end = lowerBound(mTimes, mSize, until);
+        }
+
+        // Finds the days spanned first, so the rows can be summed into a dense array of days
+        int firstDay = Integer.MAX_VALUE;
+        int lastDay = Integer.MIN_VALUE;
+        for (int i = start; i < end; i++) {
+            if (mTimes[i] >= since && mTimes[i] < until) {
+                int day = dayOf(mTimes[i]);
+                firstDay = Math.min(firstDay, day);
+                lastDay = Math.max(lastDay, day);
+            }
+        }
+        if (firstDay > lastDay) {
+            return 0;
+        }
+
+        int days = lastDay - firstDay + 1;
+        int[] taps = new int[days];
+        long[] dayTotals = new long[days];
+        long[] increases = new long[days];
+        long[] decreases = new long[days];
+        for (int i = start; i < end; i++) {
+            if (mTimes[i] >= since && mTimes[i] < until) {
+                int day = dayOf(mTimes[i]) - firstDay;
+                int change = mChanges[i];
+                taps[day]++;
+                dayTotals[day] += change;
+                if (change > 0) {
+                    increases[day] += change;
+                } else {
+                    decreases[day] += change;
+                }
+            }
+        }
+
+        int added = 0;
+        for (int day = 0; day < days; day++) {
+            if (taps[day] > 0) {
+                totals.set(firstDay + day, taps[day], dayTotals[day], increases[day],
+                        decreases[day]);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Returns the local day of a time, as days since the epoch.
+     */
+    private int dayOf(long time) {
+        long local = time + mZone.getOffset(time);
+        long day = local / MILLIS_PER_DAY;
+        if (local < 0 && day * MILLIS_PER_DAY != local) {
+            day--;
+        }
+        return (int) day;
+    }
+
+    private void insertAt(int position, long id, int count, int change, long time) {
+        if (mSize == mIds.length) {
+            int capacity = mSize * 2;
+            long[] ids = new long[capacity];
+            long[] times = new long[capacity];
+            int[] counts = new int[capacity];
+            int[] changes = new int[capacity];
+            System.arraycopy(mIds, 0, ids, 0, mSize);
+            System.arraycopy(mTimes, 0, times, 0, mSize);
+            System.arraycopy(mCounts, 0, counts, 0, mSize);
+            System.arraycopy(mChanges, 0, changes, 0, mSize);
+            mIds = ids;
+            mTimes = times;
+            mCounts = counts;
+            mChanges = changes;
+        }
+        int tail = mSize - position;
+        if (tail > 0) {
+            System.arraycopy(mIds, position, mIds, position + 1, tail);
+            System.arraycopy(mTimes, position, mTimes, position + 1, tail);
+            System.arraycopy(mCounts, position, mCounts, position + 1, tail);
+            System.arraycopy(mChanges, position, mChanges, position + 1, tail);
+        }
+        if ((position > 0 && time < mTimes[position - 1])
+                || (tail > 0 && time > mTimes[position + 1])) {
+            mTimeOrdered = false;
+        }
+        mIds[position] = id;
+        mTimes[position] = time;
+        mCounts[position] = count;
+        mChanges[position] = change;
+        mSize++;
+    }
+
+    /**
+     * Returns the position of the first of the first size values that is not below a key.
+     */
+    private static int lowerBound(long[] values, int size, long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,77 @@
+package me.freewine.winnie.core;
+
+import junit.framework.TestCase;
+
+import java.util.TimeZone;
+
+/**
+ * Checks the reference history store against the contract of {@link HistoryStore}.
+ */
+public class InMemoryHistoryStoreTest extends TestCase {
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private InMemoryHistoryStore mStore;
+
+    @Override
+    protected void setUp() {
+        mStore = new InMemoryHistoryStore(0, TimeZone.getTimeZone("UTC"));
+    }
+
+    public void testCountIsClampedAtZero() {
+        assertEquals(CounterEngine.INITIAL_COUNT, mStore.getCount());
+        assertEquals(0, mStore.increment(new int[]{-100, -100}, new long[]{HOUR, 2 * HOUR}));
+        assertEquals(50, mStore.increment(new int[]{50}, new long[]{3 * HOUR}));
+    }
+
+    public void testPagesFollowEachOther() {
+        for (int i = 1; i <= 25; i++) {
+            mStore.increment(new int[]{1}, new long[]{i * HOUR});
+        }
+        HistoryRows page = new HistoryRows(10);
+        assertEquals(10, mStore.readPage(Long.MAX_VALUE, 10, page));
+        assertEquals(25, page.getId(0));
+        assertEquals(16, page.getId(9));
+
+        page.clear();
+        assertEquals(10, mStore.readPage(16, 10, page));
+        assertEquals(15, page.getId(0));
+
+        page.clear();
+        assertEquals(5, mStore.readPage(6, 10, page));
+        assertEquals(1, page.getId(4));
+    }
+
+    public void testRangeReadsOnlyItsRows() {
+        for (int i = 1; i <= 48; i++) {
+            mStore.increment(new int[]{i % 2 == 0 ? 1 : -1}, new long[]{i * HOUR});
+        }
+        HistoryRows page = new HistoryRows(0);
+        assertEquals(24, mStore.readRange(24 * HOUR, 48 * HOUR, Long.MAX_VALUE, 100, page));
+        assertEquals(47, page.getId(0));
+        assertEquals(24, page.getId(23));
+
+        DailyTotals totals = new DailyTotals(0);
+        assertEquals(3, mStore.rollupDaily(0, Long.MAX_VALUE, totals));
+        assertEquals(23, totals.getTaps(0));
+        assertEquals(24, totals.getTaps(1));
+        assertEquals(12, totals.getIncrease(1));
+        assertEquals(-12, totals.getDecrease(1));
+        assertEquals(1, totals.getTaps(2));
+    }
+
+    public void testInsertSkipsExistingRowsAndReplaysTheCount() {
+        mStore.increment(new int[]{10, 10}, new long[]{HOUR, 2 * HOUR});
+        HistoryRows rows = new HistoryRows(0);
+        rows.add(2, 0, 10, 2 * HOUR);
+        rows.add(5, 0, -500, 5 * HOUR);
+        rows.add(6, 0, 7, 6 * HOUR);
+        assertEquals(2, mStore.insert(rows));
+        assertEquals(7, mStore.getCount());
+
+        rows.clear();
+        rows.add(4, 0, 1, 4 * HOUR);
+        assertEquals(1, mStore.insert(rows));
+        assertEquals(7, mStore.getCount());
+        assertEquals(5, mStore.size());
+    }
+}